@@ -32,6 +32,7 @@ import java.util.ArrayList;
 import ch.epfl.droneproject.DroneApplication;
 import ch.epfl.droneproject.R;
 import ch.epfl.droneproject.module.FlightPlanerModule;
+import ch.epfl.droneproject.module.TelemetryRing;
 
 /**
  *
@@ -75,20 +76,28 @@ public class MapsFragment extends Fragment implements OnMapReadyCallback {
      */
     private FlightPlanerModule mFPLM;
 
+    /**
+     * The telemetry of the drone, giving its last position to the drone marker
+     */
+    private TelemetryRing mTelemetry;
+    private final TelemetryRing.Sample mDroneState = new TelemetryRing.Sample();
+
     private  Marker mDroneMarker;
 
     /**
      * Initialize the Fragment as a constructor should.
      * This method MUST be called in chain with a new instantiation
-     * i.e : new MapsFragment().init(fplm);
+     * i.e : new MapsFragment().init(fplm, telemetry);
      * This method is called before createView()
      * @param mFPLM (FlightPlanerModule): the flight plan module used for link UI with data
+     * @param telemetry (TelemetryRing): the attitude and position history of the drone
      */
-    public MapsFragment init(FlightPlanerModule mFPLM) {
+    public MapsFragment init(FlightPlanerModule mFPLM, TelemetryRing telemetry) {
 
         mIsDetailsDisplay = false;
 
         this.mFPLM = mFPLM;
+        this.mTelemetry = telemetry;
         mFPLM.cleanFix();
 
         return this;
@@ -289,9 +298,9 @@ public class MapsFragment extends Fragment implements OnMapReadyCallback {
     }
 
     public void drawDrone(){
-        if(DRAW_DRONE && mDroneMarker != null){
-            // TODO
-            //mDroneMarker.setPosition(mFPLM.getCurrentDronePosition().getPosition());
+        if(DRAW_DRONE && mDroneMarker != null && mTelemetry.latest(mDroneState)
+                && mDroneState.lat != TelemetryRing.UNKNOWN_POSITION){
+            mDroneMarker.setPosition(new LatLng(mDroneState.lat, mDroneState.lon));
         }
     }
 
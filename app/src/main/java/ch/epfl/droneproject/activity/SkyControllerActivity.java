@@ -9,9 +9,11 @@ import android.support.v4.view.ViewPager;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
 import android.widget.Button;
+import android.widget.PopupMenu;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
@@ -29,6 +31,8 @@ import ch.epfl.droneproject.DroneApplication;
 import ch.epfl.droneproject.R;
 import ch.epfl.droneproject.drone.ConfigDrone;
 import ch.epfl.droneproject.drone.SkyControllerDrone;
+import ch.epfl.droneproject.module.AutoFaceRecognizer;
+import ch.epfl.droneproject.module.FaceDetector;
 
 import static com.parrot.arsdk.arcommands.ARCOMMANDS_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM.ARCOMMANDS_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_FLYING;
 import static com.parrot.arsdk.arcommands.ARCOMMANDS_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM.ARCOMMANDS_ARDRONE3_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_HOVERING;
@@ -170,6 +174,13 @@ public class SkyControllerActivity extends AppCompatActivity {
                 }
             }
         });
+        // a long click on the autopilot button opens the debug menu
+        mAutoPilotBt.setOnLongClickListener(new View.OnLongClickListener() {
+            public boolean onLongClick(View v) {
+                showDebugMenu(v);
+                return true;
+            }
+        });
 
         mCloserBt = findViewById(R.id.closerBtn);
         mCloserBt.setOnTouchListener(new View.OnTouchListener() {
@@ -274,6 +285,47 @@ public class SkyControllerActivity extends AppCompatActivity {
     }
 
 
+    /**
+     * Show the debug menu of the autopilot vision: choice of the algorithms and their benchmarks
+     * @param anchor (View): the view the menu pops from
+     */
+    private void showDebugMenu(View anchor){
+        PopupMenu menu = new PopupMenu(this, anchor);
+        menu.getMenuInflater().inflate(R.menu.menu_debug, menu.getMenu());
+        menu.getMenu().findItem(R.id.multiFace).setChecked(mSkyControllerDrone.autoPilotModule().isMultiFace());
+        menu.setOnMenuItemClickListener(new PopupMenu.OnMenuItemClickListener() {
+            public boolean onMenuItemClick(MenuItem item) {
+                switch (item.getItemId()) {
+                    case R.id.nextFaceDetector:
+                        FaceDetector.Backend[] backends = FaceDetector.Backend.values();
+                        int backend = mSkyControllerDrone.autoPilotModule().getFaceDetectorBackend().ordinal();
+                        mSkyControllerDrone.autoPilotModule().setFaceDetectorBackend(backends[(backend + 1) % backends.length]);
+                        return true;
+                    case R.id.benchmarkFaceDetectors:
+                        mSkyControllerDrone.autoPilotModule().benchmarkFaceDetectors();
+                        return true;
+                    case R.id.nextFaceRecognizer:
+                        AutoFaceRecognizer.Engine[] engines = AutoFaceRecognizer.Engine.values();
+                        int engine = mSkyControllerDrone.autoPilotModule().getFaceRecognizerEngine().ordinal();
+                        mSkyControllerDrone.autoPilotModule().setFaceRecognizerEngine(engines[(engine + 1) % engines.length]);
+                        return true;
+                    case R.id.benchmarkFaceRecognizers:
+                        mSkyControllerDrone.autoPilotModule().benchmarkFaceRecognizers();
+                        return true;
+                    case R.id.reloadFaceModel:
+                        mSkyControllerDrone.autoPilotModule().reloadFaceModel();
+                        return true;
+                    case R.id.multiFace:
+                        mSkyControllerDrone.autoPilotModule().setMultiFace(!item.isChecked());
+                        return true;
+                    default:
+                        return false;
+                }
+            }
+        });
+        menu.show();
+    }
+
     /**
      * Show the progress bar with the text label
      * @param text (String): progression label
@@ -334,7 +386,8 @@ public class SkyControllerActivity extends AppCompatActivity {
                     mVideoFragment = new VideoFragment().init(mSkyControllerDrone.autoPilotModule());
                     return mVideoFragment;
                 case 1:
-                    mMapFragment = new MapsFragment().init(mSkyControllerDrone.autoPilotModule().getFlightPlanerModule());
+                    mMapFragment = new MapsFragment().init(mSkyControllerDrone.autoPilotModule().getFlightPlanerModule(),
+                            mSkyControllerDrone.autoPilotModule().getTelemetry());
                     return mMapFragment;
                 case 2:
                     return new Fragment();
@@ -1,6 +1,7 @@
 package ch.epfl.droneproject.activity;
 
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v4.app.Fragment;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -35,6 +36,19 @@ public class VideoFragment extends Fragment {
     private TextView mDroneConnectionLabel;
     private ConsoleView mConsole;
 
+    // Overlay of the vision metrics, hidden by default and toggled by a long click on the console.
+    // Refreshed every METRICS_PERIOD ms while it is shown and the fragment is resumed
+    private static final int METRICS_PERIOD = 500;
+    private TextView mMetricsView;
+    private final Handler mHandler = new Handler();
+    private final Runnable mMetricsUpdate = new Runnable() {
+        @Override
+        public void run() {
+            mMetricsView.setText(mAPM.getVisionMetrics() + "\n" + mAPM.getPilotingCounters());
+            mHandler.postDelayed(this, METRICS_PERIOD);
+        }
+    };
+
     /**
      * Initialize the Fragment as a constructor should.
      * This method MUST be called in chain with a new instantiation
@@ -63,6 +77,14 @@ public class VideoFragment extends Fragment {
 
         mDroneConnectionLabel = mView.findViewById(R.id.droneConnectionLabel);
         mConsole = mView.findViewById(R.id.console);
+        mMetricsView = mView.findViewById(R.id.metricsView);
+        mConsole.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                makeMetricsVisible(mMetricsView.getVisibility() != View.VISIBLE);
+                return true;
+            }
+        });
         DroneApplication.getApplication().getConsoleMessage().addListener(mConsole);
 
         return mView;
@@ -72,12 +94,16 @@ public class VideoFragment extends Fragment {
     public void onResume(){
         super.onResume();
         mAPM.resumeThreads(mVideoView, mCVCView, mConsole);
+        if (mMetricsView.getVisibility() == View.VISIBLE) {
+            mHandler.post(mMetricsUpdate);
+        }
 
     }
 
     @Override
     public void onPause(){
         super.onPause();
+        mHandler.removeCallbacks(mMetricsUpdate);
         mAPM.pauseThreads();
     }
 
@@ -101,6 +127,22 @@ public class VideoFragment extends Fragment {
         mVideoView.configureDecoder(codec);
     }
 
+    /**
+     * Show or hide the overlay of the vision metrics, and start or stop its refresh
+     * @param visible (boolean): true to show the overlay
+     */
+    public void makeMetricsVisible(boolean visible) {
+        mHandler.removeCallbacks(mMetricsUpdate);
+        if (visible) {
+            mMetricsView.setVisibility(View.VISIBLE);
+            if (isResumed()) {
+                mHandler.post(mMetricsUpdate);
+            }
+        }else{
+            mMetricsView.setVisibility(View.GONE);
+        }
+    }
+
     public void displayFrame(ARFrame frame){
         mVideoView.displayFrame(frame);
     }
@@ -33,6 +33,7 @@ import com.parrot.arsdk.arutils.ARUtilsManager;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import ch.epfl.droneproject.module.AutoPilotModule;
 import ch.epfl.droneproject.module.SkyControllerExtensionModule;
@@ -207,6 +208,8 @@ public class SkyControllerDrone {
 
     public void dispose()
     {
+        if (mAutoPilotModule != null)
+            mAutoPilotModule.dispose();
         if (mDeviceController != null)
             mDeviceController.dispose();
         if (mFtpListManager != null)
@@ -385,6 +388,26 @@ public class SkyControllerDrone {
         }
     }
 
+    /**
+     * Notify the listeners of a new attitude or position on the main thread. The events come faster
+     * than the UI needs them: a single notification is pending at a time, it reads the last state
+     * from the telemetry of the autopilot, and the same Runnable is posted again (no allocation)
+     */
+    private void postPositionChange() {
+        if (mPositionChangePending.compareAndSet(false, true)) {
+            mHandler.post(mPositionChangeNotifier);
+        }
+    }
+
+    private final AtomicBoolean mPositionChangePending = new AtomicBoolean(false);
+    private final Runnable mPositionChangeNotifier = new Runnable() {
+        @Override
+        public void run() {
+            mPositionChangePending.set(false);
+            notifyOnDronePositionChange();
+        }
+    };
+
     private void notifyOnDronePositionChange() {
         List<Listener> listenersCpy = new ArrayList<>(mListeners);
         for (Listener listener : listenersCpy) {
@@ -411,6 +434,9 @@ public class SkyControllerDrone {
         @Override
         public void onExtensionStateChanged(ARDeviceController deviceController, ARCONTROLLER_DEVICE_STATE_ENUM newState, ARDISCOVERY_PRODUCT_ENUM product, String name, ARCONTROLLER_ERROR_ENUM error) {
             mDroneState = newState;
+            if (mSKEModule != null) {
+                mSKEModule.setExtensionState(newState);
+            }
             if (ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING.equals(mDroneState)) {
                 mDeviceController.getFeatureARDrone3().sendMediaStreamingVideoEnable((byte) 1);
             }
@@ -528,12 +554,7 @@ public class SkyControllerDrone {
                     final float pitch = (float)((Double)args.get(ARFeatureARDrone3.ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_PILOTINGSTATE_ATTITUDECHANGED_PITCH)).doubleValue();
                     final float yaw = (float)((Double)args.get(ARFeatureARDrone3.ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_PILOTINGSTATE_ATTITUDECHANGED_YAW)).doubleValue();
                     mAutoPilotModule.updateDroneSettings(roll, pitch, yaw);
-                    mHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            notifyOnDronePositionChange();
-                        }
-                    });
+                    postPositionChange();
                 }
             }
 
@@ -568,12 +589,7 @@ public class SkyControllerDrone {
                     final double longitude = (double)args.get(ARFeatureARDrone3.ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_PILOTINGSTATE_POSITIONCHANGED_LONGITUDE);
                     final double altitude = (double)args.get(ARFeatureARDrone3.ARCONTROLLER_DICTIONARY_KEY_ARDRONE3_PILOTINGSTATE_POSITIONCHANGED_ALTITUDE);
                     mAutoPilotModule.updateDroneSettings(latitude, longitude, altitude);
-                    mHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            notifyOnDronePositionChange();
-                        }
-                    });
+                    postPositionChange();
                 }
             }
 
@@ -9,22 +9,37 @@ import android.util.Log;
 import org.bytedeco.javacpp.DoublePointer;
 import org.bytedeco.javacpp.IntPointer;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.Writer;
 import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import ch.epfl.droneproject.DroneApplication;
 
 import static org.bytedeco.javacpp.opencv_core.*;
 import static org.bytedeco.javacpp.opencv_face.FaceRecognizer;
 import static org.bytedeco.javacpp.opencv_face.createEigenFaceRecognizer;
+import static org.bytedeco.javacpp.opencv_face.createFisherFaceRecognizer;
+import static org.bytedeco.javacpp.opencv_face.createLBPHFaceRecognizer;
 import static org.bytedeco.javacpp.opencv_imgcodecs.CV_LOAD_IMAGE_GRAYSCALE;
 import static org.bytedeco.javacpp.opencv_imgcodecs.imread;
-import static org.bytedeco.javacpp.opencv_imgproc.COLOR_RGB2GRAY;
 import static org.bytedeco.javacpp.opencv_imgproc.CV_INTER_AREA;
 import static org.bytedeco.javacpp.opencv_imgproc.CV_INTER_LINEAR;
-import static org.bytedeco.javacpp.opencv_imgproc.cvCvtColor;
 import static org.bytedeco.javacpp.opencv_imgproc.cvEqualizeHist;
 import static org.bytedeco.javacpp.opencv_imgproc.cvResize;
 
@@ -32,13 +47,17 @@ import static org.bytedeco.javacpp.opencv_imgproc.cvResize;
  * AutoFaceRecognizer.java
  * @author blchatel
  *
- * Use Eigen faces algorithm to recognize subject from a color images.
+ * Use Eigen faces algorithm (or another Engine) to recognize subject from a grayscale images (i.e. the luma of the frames).
  * http://www.shervinemami.info/faceRecognition.html
  * @see org.bytedeco.javacpp.opencv_face
+ * @see Engine
  *
- * The class use a model saved on the phone at /Training/eigenFaces.yml (about 50Mo for 150 images or 3 faces)
- * The class will train the model if the yml file doesn't exists. It assume images are in /Training/ folder and
- * follow the rules:
+ * The class use a model saved on the phone at /Training/eigenFaces_<hash>.yml (about 50Mo for 150 images or 3 faces)
+ * where hash identifies the training set: the model is trained again only when the training images change.
+ * An LBPH model is not trained again when images are only added: the new images update the previous
+ * model (the images of a model are listed in the manifest /Training/lbphFaces_<hash>.txt).
+ * The class will train the model in the background if the yml file doesn't exists. It assume images are
+ * in /Training/ folder and follow the rules:
  *  - Images are in jpg, pgm or png format
  *  - Images are TRAINING_WIDTH x TRAINING_HEIGHT resolution
  *  - the name is T_X_label_NN.[pgm|jpg|png] where:
@@ -54,7 +73,16 @@ import static org.bytedeco.javacpp.opencv_imgproc.cvResize;
  *
  *       Another polit
  *
- * If the model exists the class will load it (about 10 sec)
+ * If the model exists the class will load it in the background (about 10 sec). Meanwhile nobody is recognized.
+ * Without training images, a model saved at /Training/eigenFaces.yml is loaded.
+ * A new model (see refresh) is swapped in by the face thread itself, between two calls to process.
+ *
+ * Recognizing is expensive: the face thread only calls process when the identity of a face track is
+ * unknown, old or when the face changed, the identity is cached in between.
+ * Several faces of a frame are recognized as a batch (see processAll): they are normalized into
+ * the bands of one contiguous buffer and predicted in a row, the model swap, the buffers and the
+ * outputs of predict being shared by the whole batch.
+ * @see FaceTrackCache
  */
 public class AutoFaceRecognizer {
 
@@ -102,129 +130,436 @@ public class AutoFaceRecognizer {
         public static void setConfidence(double c){confidence = c; }
     }
 
+    /**
+     * The recognition algorithms, their model files and their confidence threshold (a distance: the
+     * smaller, the more confident, the scales of the engines differ)
+     */
+    public enum Engine {
+        EIGEN("eigenFaces_", 6000) {
+            FaceRecognizer create() {
+                return createEigenFaceRecognizer();
+            }
+        },
+        // Needs at least two subjects
+        FISHER("fisherFaces_", 1500) {
+            FaceRecognizer create() {
+                return createFisherFaceRecognizer();
+            }
+        },
+        // Local histograms: much smaller models, and the only engine which learns new images without training again
+        LBPH("lbphFaces_", 80) {
+            FaceRecognizer create() {
+                return createLBPHFaceRecognizer();
+            }
+
+            boolean canUpdate() {
+                return true;
+            }
+        };
+
+        private final String modelPrefix;
+        private final double threshold;
+
+        Engine(String modelPrefix, double threshold) {
+            this.modelPrefix = modelPrefix;
+            this.threshold = threshold;
+        }
+
+        /**
+         * @return (FaceRecognizer): a new untrained model of the engine
+         */
+        abstract FaceRecognizer create();
+
+        /**
+         * @return (boolean): true if a trained model can learn new images (see FaceRecognizer.update)
+         */
+        boolean canUpdate() {
+            return false;
+        }
+
+        double threshold() {
+            return threshold;
+        }
+    }
+
     // Contants
     private static final String TAG = "AutoFaceRecognizer";
+    // Eigen model without training set (e.g. copied on the phone), used only if there is no training image
     private static final String MODEL_FILE_PATH = "eigenFaces.yml";
-    private static final String TRAINING_FOLDER_PATH = "/Training/";
+    // Model trained on a training set: <engine prefix><hash of the training set>.yml and its manifest
+    private static final String MODEL_EXTENSION = ".yml";
+    private static final String MANIFEST_EXTENSION = ".txt";
+    static final String TRAINING_FOLDER_PATH = "/Training/";
     private static final int TRAINING_WIDTH = 120;
     private static final int TRAINING_HEIGHT = 90;
-    private static final double CONFIDENCE_THRESHOLD = 6000;
+    // Faces recognized in one batch, i.e. all the faces a detector finds on a frame
+    static final int MAX_BATCH = FaceDetector.MAX_FACES;
 
     private final String EXTERNAL_DIRECTORY; // computed in constructor
 
-    private FaceRecognizer faceRecognizer;
+    // Model used by process (face thread only), and model loaded or trained by the trainer waiting to be used
+    private Model model;
+    private final AtomicReference<Model> pendingModel;
+    // Number of models used so far, i.e. the version of the results of process
+    private int modelVersion;
+
+    // Background worker loading or training the model, engine it must use, key (engine and hash of the
+    // training set) of the last model, and whether the training set must be checked again once done
+    private Thread trainer;
+    private volatile Engine engine;
+    private volatile String modelKey;
+    private volatile boolean refreshRequested;
+    private boolean destroyed;
+
+    // Normalized faces of a batch: one TRAINING_WIDTH x TRAINING_HEIGHT band per face in a contiguous
+    // image, and a Mat header per band (no copy) given to predict
+    private final IplImage batchIpl;
+    private final Mat batchMat;
+    private final Mat[] bandMats;
+    private final CvRect bandRoi, faceRoi;
+    // Outputs of predict, reused for each face
+    private final IntPointer predictedLabel;
+    private final DoublePointer predictedConfidence;
 
-    // Useful variable
-    private Mat labelsMat;
-    private ArrayMap<Integer, String> labelNamesList;
-    private MatVector images;
-    private IplImage grayIpl;
+    /**
+     * A trained model and its engine
+     */
+    private static class Model {
+        final FaceRecognizer recognizer;
+        final Engine engine;
 
-    private boolean isTrained;
+        Model(FaceRecognizer recognizer, Engine engine) {
+            this.recognizer = recognizer;
+            this.engine = engine;
+        }
+    }
 
 
     /**
-     * Default AutoFaceRecognizer constructor
+     * Default AutoFaceRecognizer constructor. Does not block: the model is loaded or trained in the
+     * background (see refresh) and process recognizes nobody until it is ready
+     * @param engine (Engine): the recognition algorithm
+     * @param arena (NativeArena): owner of the batch buffers
      */
-    AutoFaceRecognizer() {
+    AutoFaceRecognizer(Engine engine, NativeArena arena) {
 
         EXTERNAL_DIRECTORY = Environment.getExternalStorageDirectory().toString().concat(TRAINING_FOLDER_PATH);
 
-        faceRecognizer = createEigenFaceRecognizer();
-        grayIpl = cvCreateImage(cvSize(TRAINING_WIDTH, TRAINING_HEIGHT), IPL_DEPTH_8U, 1);
+        batchIpl = arena.image(NativeArena.STAGE_FACE, TRAINING_WIDTH, TRAINING_HEIGHT * MAX_BATCH, IPL_DEPTH_8U, 1);
+        batchMat = arena.track(NativeArena.STAGE_FACE, cvarrToMat(batchIpl), 0);
+        bandMats = new Mat[MAX_BATCH];
+        for (int i = 0; i < MAX_BATCH; i++) {
+            bandMats[i] = arena.track(NativeArena.STAGE_FACE, batchMat.rowRange(i * TRAINING_HEIGHT, (i + 1) * TRAINING_HEIGHT), 0);
+        }
+        bandRoi = new CvRect();
+        faceRoi = new CvRect();
+        predictedLabel = arena.track(NativeArena.STAGE_FACE, new IntPointer(1), 4);
+        predictedConfidence = arena.track(NativeArena.STAGE_FACE, new DoublePointer(1), 8);
+        pendingModel = new AtomicReference<>();
+        modelVersion = 0;
+        destroyed = false;
+        this.engine = engine;
+        refresh();
+    }
 
-        File file = new File(EXTERNAL_DIRECTORY+MODEL_FILE_PATH);
-        if(file.exists()){
-            DroneApplication.pushInfoMessage("Model exists");
-            faceRecognizer.load(EXTERNAL_DIRECTORY+MODEL_FILE_PATH);
-            isTrained = true;
-            DroneApplication.pushInfoMessage("Model Loaded");
+    /**
+     * Check the training set in the background: load the model of the current training set, or train
+     * it if it does not exist yet (i.e. the images changed since the last training). The new model is
+     * swapped in on the next call to process, the current one is used meanwhile.
+     * Nothing is done if the training set did not change
+     */
+    void refresh() {
+        if (trainer != null && trainer.isAlive()) {
+            // Checked again by the running trainer once done
+            refreshRequested = true;
+            return;
         }
-        else{
-            DroneApplication.pushInfoMessage("Model does not exist");
-            isTrained = false;
-            loadTrainingImages();
-            train();
+        refreshRequested = false;
+        trainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                do {
+                    refreshRequested = false;
+                    prepareModel(engine);
+                } while (refreshRequested);
+            }
+        }, "FaceModelTrainer");
+        trainer.start();
+    }
+
+    /**
+     * Select the recognition algorithm: its model is loaded or trained in the background and swapped
+     * in once ready, the current model is used meanwhile
+     * @param engine (Engine): the new algorithm
+     */
+    void setEngine(Engine engine) {
+        if (this.engine != engine) {
+            this.engine = engine;
+            refresh();
         }
     }
 
     /**
-     * If the model is trained this class try to recognize the face given in the rgbaImage
+     * @return (Engine): the selected recognition algorithm (its model may not be used yet)
+     */
+    Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * @return (int): version of the model used by the last process, incremented on each swap
+     */
+    int modelVersion() {
+        return modelVersion;
+    }
+
+    /**
+     * If the model is trained this class try to recognize the face given in the grayImage
      * To test an image, it must be of the same size as the trained one. So we need to
-     *  - convert it in gray
-     *  - equalize the level
      *  - Resize the image in a TRAINING_WIDTH x TRAINING_HEIGHT resolution
-     * @param rgbaImage (IplImage): The input rgba image. It contains a single face to recognize an has w x h resolution
-     * @param w (int): width of the rgbaImage
-     * @param h (int): height of the rgbaImage
+     *  - equalize the level, in place on the resized image (i.e. on TRAINING_WIDTH x TRAINING_HEIGHT
+     *    pixels only and without any intermediate image)
+     * The image is already gray (i.e. the luma plane of the decoded frame), no color conversion is needed
+     * @param grayImage (IplImage): The input gray image. It contains a single face to recognize an has w x h resolution
+     * @param w (int): width of the grayImage
+     * @param h (int): height of the grayImage
      * @return (Recognized) the Recognized person
      */
-    public Recognized process(IplImage rgbaImage, int w, int h){
-        if(isTrained) {
+    public Recognized process(IplImage grayImage, int w, int h){
 
-            IplImage inputIpl = cvCreateImage(cvSize(w, h), IPL_DEPTH_8U, 1);
-            cvCvtColor(rgbaImage, inputIpl, COLOR_RGB2GRAY);
-            cvEqualizeHist(inputIpl, inputIpl);
+        swapModel();
+        if(model == null) {
+            return Recognized.UNKNOWN;
+        }
+        normalize(grayImage, w, h, 0);
+        return predict(0);
+    }
 
-            // Scale the image to the new dimensions, even if the aspect ratio will be changed.
+    /**
+     * Recognize several faces of a frame as a batch: all the faces are first normalized (as in process)
+     * into the contiguous bands of the batch image, then predicted one band after the other
+     * @param image (IplImage): the gray frame, without ROI
+     * @param faces (DetectionBuffer): the faces detected on the frame
+     * @param indices (int[]): indices in faces of the faces to recognize
+     * @param count (int): number of faces to recognize, at most MAX_BATCH
+     * @param out (Recognized[]): output, the Recognized person of the face i at index i
+     */
+    void processAll(IplImage image, DetectionBuffer faces, int[] indices, int count, Recognized[] out){
 
-            if (TRAINING_WIDTH > w && TRAINING_HEIGHT > h) {
-                // Make the image larger
-                cvResetImageROI(inputIpl);
-                cvResize(inputIpl, grayIpl, CV_INTER_LINEAR);	// CV_INTER_CUBIC or CV_INTER_LINEAR is good for enlarging
+        swapModel();
+        count = Math.min(count, MAX_BATCH);
+        if(model == null) {
+            for (int k = 0; k < count; k++) {
+                out[indices[k]] = Recognized.UNKNOWN;
             }
-            else {
-                // Make the image smaller
-                cvResetImageROI(inputIpl);
-                cvResize(inputIpl, grayIpl, CV_INTER_AREA);	// CV_INTER_AREA is good for shrinking / decimation, but bad at enlarging.
+            return;
+        }
+
+        for (int k = 0; k < count; k++) {
+            int i = indices[k];
+            cvSetImageROI(image, faceRoi.x(faces.x(i)).y(faces.y(i)).width(faces.width(i)).height(faces.height(i)));
+            normalize(image, faces.width(i), faces.height(i), k);
+            cvResetImageROI(image);
+        }
+        for (int k = 0; k < count; k++) {
+            out[indices[k]] = predict(k);
+        }
+    }
+
+    /**
+     * Swap in the model prepared by the trainer, if any
+     */
+    private void swapModel() {
+        Model next = pendingModel.getAndSet(null);
+        if(next != null) {
+            if(model != null) {
+                model.recognizer.deallocate();
             }
+            model = next;
+            modelVersion++;
+        }
+    }
 
-            Mat matImage = new Mat(grayIpl);
-            IntPointer l = new IntPointer(1);
-            DoublePointer c = new DoublePointer(1);
+    /**
+     * Resize a face into a band of the batch image and equalize it in place
+     * @param grayImage (IplImage): the face, w x h
+     * @param w (int): width of the face
+     * @param h (int): height of the face
+     * @param band (int): index of the band, lower than MAX_BATCH
+     */
+    private void normalize(IplImage grayImage, int w, int h, int band) {
 
-            faceRecognizer.predict(matImage, l, c);
+        cvSetImageROI(batchIpl, bandRoi.x(0).y(band * TRAINING_HEIGHT).width(TRAINING_WIDTH).height(TRAINING_HEIGHT));
 
-            int label = l.get(0);
-            double confidence = c.get(0);
+        // Scale the image to the new dimensions, even if the aspect ratio will be changed.
+        if (TRAINING_WIDTH > w && TRAINING_HEIGHT > h) {
+            // Make the image larger
+            cvResize(grayImage, batchIpl, CV_INTER_LINEAR);	// CV_INTER_CUBIC or CV_INTER_LINEAR is good for enlarging
+        }
+        else {
+            // Make the image smaller
+            cvResize(grayImage, batchIpl, CV_INTER_AREA);	// CV_INTER_AREA is good for shrinking / decimation, but bad at enlarging.
+        }
+        cvEqualizeHist(batchIpl, batchIpl);
+        cvResetImageROI(batchIpl);
+    }
 
-            String labelInfo = faceRecognizer.getLabelInfo(label).getString();
-            char type = labelInfo.charAt(0);
+    /**
+     * Predict the subject of a normalized face with the current model (not null)
+     * @param band (int): index of the band of the face in the batch image
+     * @return (Recognized) the Recognized person
+     */
+    private Recognized predict(int band) {
+
+        model.recognizer.predict(bandMats[band], predictedLabel, predictedConfidence);
+
+        int label = predictedLabel.get(0);
+        double confidence = predictedConfidence.get(0);
+
+        String labelInfo = model.recognizer.getLabelInfo(label).getString();
+        char type = labelInfo.charAt(0);
+
+        DroneApplication.pushDebugMessage("Predicted label: " + label+ " - "+labelInfo + ", confidence: " + confidence);
+
+        Recognized.setConfidence(confidence);
+
+        if(confidence < model.engine.threshold()){
+
+            if(type == Recognized.ADMIN.type()){
+                return Recognized.ADMIN;
+            }
+            else if(type == Recognized.FRIEND.type()){
+                return Recognized.FRIEND;
+            }
+            else if(type == Recognized.ENEMY.type()){
+                return Recognized.ENEMY;
+            }
+        }
+        return Recognized.UNKNOWN;
+    }
+
+    /**
+     * Release the models (the buffers belong to the arena). Called by the face thread once it does not
+     * need the recognizer any more, a model finished later by the trainer is released at once
+     */
+    synchronized void destroy() {
+        destroyed = true;
+        Model pending = pendingModel.getAndSet(null);
+        if(pending != null) {
+            pending.recognizer.deallocate();
+        }
+        if(model != null) {
+            model.recognizer.deallocate();
+            model = null;
+        }
+    }
 
-            DroneApplication.pushDebugMessage("Predicted label: " + label+ " - "+labelInfo + ", confidence: " + confidence);
+    /**
+     * Give a model to the face thread. Called by the trainer
+     * @param next (Model): the loaded or trained model
+     * @param key (String): key of the model (engine and hash of its training set)
+     */
+    private synchronized void publish(Model next, String key) {
+        if(destroyed) {
+            next.recognizer.deallocate();
+            return;
+        }
+        // A model not used yet is replaced by the newer one
+        Model old = pendingModel.getAndSet(next);
+        if(old != null) {
+            old.recognizer.deallocate();
+        }
+        modelKey = key;
+    }
 
-            Recognized.setConfidence(confidence);
+    /**
+     * Load the model of the current training set or train it. Run by the trainer
+     * @param engine (Engine): the recognition algorithm
+     */
+    private void prepareModel(Engine engine) {
+
+        File[] imageFiles = listTrainingImages(EXTERNAL_DIRECTORY);
+        if(imageFiles == null || imageFiles.length < 3) {
+            // No training set: use the untrained eigen model file if any
+            File file = new File(EXTERNAL_DIRECTORY+MODEL_FILE_PATH);
+            if(engine == Engine.EIGEN && file.exists() && !MODEL_FILE_PATH.equals(modelKey)) {
+                DroneApplication.pushInfoMessage("Model exists");
+                FaceRecognizer recognizer = engine.create();
+                recognizer.load(file.getAbsolutePath());
+                publish(new Model(recognizer, engine), MODEL_FILE_PATH);
+                DroneApplication.pushInfoMessage("Model Loaded");
+            }
+            else if(engine != Engine.EIGEN || !file.exists()) {
+                DroneApplication.pushErrorMessage("Not enough images for training !");
+                Log.e(TAG, "Not enough images for training !");
+            }
+            return;
+        }
 
-            if(confidence < CONFIDENCE_THRESHOLD){
+        String[] entries = entries(imageFiles);
+        String name = engine.modelPrefix + hash(entries);
+        if(name.equals(modelKey)) {
+            return;
+        }
 
-                if(type == Recognized.ADMIN.type()){
-                    return Recognized.ADMIN;
+        FaceRecognizer recognizer = engine.create();
+        File modelFile = new File(EXTERNAL_DIRECTORY + name + MODEL_EXTENSION);
+        if(modelFile.exists()) {
+            DroneApplication.pushInfoMessage("Model " + name + " exists");
+            recognizer.load(modelFile.getAbsolutePath());
+            DroneApplication.pushInfoMessage("Model Loaded");
+        }
+        else {
+            DroneApplication.pushInfoMessage("Model " + name + " does not exist");
+
+            // Only the added images are learned if the engine can update a previous model
+            File[] added = null;
+            if(engine.canUpdate()) {
+                File previous = previousModel(engine, entries);
+                if(previous != null) {
+                    added = addedImages(previous, imageFiles, entries);
+                    recognizer.load(previous.getAbsolutePath());
                 }
-                else if(type == Recognized.FRIEND.type()){
-                    return Recognized.FRIEND;
+            }
+
+            try {
+                if(added != null) {
+                    DroneApplication.pushInfoMessage("Start updating with " + added.length + " images");
+                    learn(recognizer, added, true);
                 }
-                else if(type == Recognized.ENEMY.type()){
-                    return Recognized.ENEMY;
+                else {
+                    DroneApplication.pushInfoMessage("Start training");
+                    learn(recognizer, imageFiles, false);
                 }
+                DroneApplication.pushInfoMessage("End training");
+            } catch (RuntimeException e) {
+                // e.g. fisher faces with a single subject
+                DroneApplication.pushErrorMessage("Failed to train the model: " + e.getMessage());
+                Log.e(TAG, "Failed to train the model: " + e);
+                recognizer.deallocate();
+                return;
+            }
+            save(recognizer, modelFile, entries);
+            if(modelFile.exists()) {
+                deleteOtherModels(engine, name);
             }
         }
-        return Recognized.UNKNOWN;
+        publish(new Model(recognizer, engine), name);
     }
 
-
     /**
-     * Load all T_X_label_NN.[jpg|pgm|png] images in the EXTERNAL_DIRECTORY
-     * and store them by X value
+     * @param dir (String): the training folder
+     * @return (File[]): the [jpg|pgm|png] images in the folder sorted by name, null if the folder
+     * does not exist
      */
-    private void loadTrainingImages() {
-        DroneApplication.pushInfoMessage("Load Training Images");
+    static File[] listTrainingImages(String dir) {
 
         // if the directory doesn't exist -> no training files
-        File root = new File(EXTERNAL_DIRECTORY);
+        File root = new File(dir);
         if(!(root.exists() && root.isDirectory())) {
-            DroneApplication.pushErrorMessage("Failed to load image, no directory: " + EXTERNAL_DIRECTORY);
-            Log.e(TAG, "Failed to load image, no directory: " + EXTERNAL_DIRECTORY);
-            return;
+            DroneApplication.pushErrorMessage("Failed to load image, no directory: " + dir);
+            Log.e(TAG, "Failed to load image, no directory: " + dir);
+            return null;
         }
 
         FilenameFilter imgFilter = new FilenameFilter() {
@@ -235,64 +570,243 @@ public class AutoFaceRecognizer {
         };
 
         File[] imageFiles = root.listFiles(imgFilter);
+        if(imageFiles != null) {
+            Arrays.sort(imageFiles);
+        }
+        return imageFiles;
+    }
 
-        if(imageFiles.length < 3){
-            DroneApplication.pushErrorMessage("Not enough images for training !");
-            Log.e(TAG, "Not enough images for training !");
-        }else{
+    /**
+     * @param imageFiles (File[]): the images sorted by name
+     * @return (String[]): an entry per image, which changes with its name, size or date
+     */
+    private static String[] entries(File[] imageFiles) {
+        String[] entries = new String[imageFiles.length];
+        for (int i = 0; i < imageFiles.length; i++) {
+            File image = imageFiles[i];
+            entries[i] = image.getName() + ":" + image.length() + ":" + image.lastModified();
+        }
+        return entries;
+    }
 
-            // Release previous loaded image
-            if(images != null){
-                for(int i = 0; i< images.size(); i++){
-                    images.get(i).release();
-                }
+    /**
+     * Hash of a training set: a change of the name, size or date of any image changes the hash
+     * @param entries (String[]): the entries of the images sorted by name
+     * @return (String): the hash in hexadecimal
+     */
+    private static String hash(String[] entries) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (String entry : entries) {
+                digest.update((entry + ";").getBytes(Charset.forName("UTF-8")));
             }
-            if(labelsMat != null){
-                labelsMat.release();
+            byte[] bytes = digest.digest();
+            StringBuilder hex = new StringBuilder();
+            // 8 bytes are enough to tell the training sets of a phone apart
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format(Locale.US, "%02x", bytes[i]));
             }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is always available on Android
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Load T_X_label_NN.[jpg|pgm|png] images and their labels
+     * @param imageFiles (File[]): the images
+     * @param images (MatVector): output, one Mat per image
+     * @param labelsMat (Mat): output, one CV_32SC1 row per image
+     * @param labelNames (Map): output, the label info (type+name) of each label
+     */
+    static void loadImages(File[] imageFiles, MatVector images, Mat labelsMat, Map<Integer, String> labelNames) {
 
-            images = new MatVector(imageFiles.length);
-            labelsMat = new Mat(imageFiles.length, 1, CV_32SC1);
-            labelNamesList = new ArrayMap<>();
+        IntBuffer labelsBuf = labelsMat.createBuffer();
 
-            IntBuffer labelsBuf = labelsMat.createBuffer();
+        int counter = 0;
 
-            int counter = 0;
+        for (File image : imageFiles) {
+            Mat img = imread(image.getAbsolutePath(), CV_LOAD_IMAGE_GRAYSCALE);
 
-            for (File image : imageFiles) {
-                Mat img = imread(image.getAbsolutePath(), CV_LOAD_IMAGE_GRAYSCALE);
+            String[] ss = image.getName().split("\\_");
+            String type = ss[0];
+            int label = Integer.parseInt(ss[1]);
+            String name = ss[2];
 
-                String[] ss = image.getName().split("\\_");
-                String type = ss[0];
-                int label = Integer.parseInt(ss[1]);
-                String name = ss[2];
+            //labelNamesList.put(label, name);
+            labelNames.put(label, type+"+"+name);
+            images.put(counter, img);
 
-                //labelNamesList.put(label, name);
-                labelNamesList.put(label, type+"+"+name);
-                images.put(counter, img);
+            labelsBuf.put(counter, label);
+            counter++;
+        }
+    }
 
-                labelsBuf.put(counter, label);
-                counter++;
+    /**
+     * Train a model on images, or update it with new images
+     * @param recognizer (FaceRecognizer): the model
+     * @param imageFiles (File[]): the images to learn
+     * @param update (boolean): true to add the images to the trained model (see Engine.canUpdate)
+     */
+    static void learn(FaceRecognizer recognizer, File[] imageFiles, boolean update) {
+        MatVector images = new MatVector(imageFiles.length);
+        Mat labelsMat = new Mat(imageFiles.length, 1, CV_32SC1);
+        ArrayMap<Integer, String> labelNamesList = new ArrayMap<>();
+        loadImages(imageFiles, images, labelsMat, labelNamesList);
+
+        for(Map.Entry<Integer, String> entry : labelNamesList.entrySet()) {
+            int key = entry.getKey();
+            String name = entry.getValue();
+            recognizer.setLabelInfo(key, name);
+        }
+        try {
+            if(update) {
+                recognizer.update(images, labelsMat);
+            }
+            else {
+                recognizer.train(images, labelsMat);
             }
+        } finally {
+            // Release the loaded images
+            for(int i = 0; i< images.size(); i++){
+                images.get(i).release();
+            }
+            labelsMat.release();
         }
     }
 
     /**
-     * Train the model on the loaded images and save the model for next start
+     * Save a model and its manifest for the next start. Each file is saved in a temporary file renamed
+     * once complete, hence a model file is never partially written
+     * @param recognizer (FaceRecognizer): the trained model
+     * @param modelFile (File): where to save the model
+     * @param entries (String[]): the entries of its training images
      */
-    private void train(){
-        if(faceRecognizer != null && images != null && labelsMat != null) {
-            for(Map.Entry<Integer, String> entry : labelNamesList.entrySet()) {
-                int key = entry.getKey();
-                String name = entry.getValue();
-                faceRecognizer.setLabelInfo(key, name);
+    private void save(FaceRecognizer recognizer, File modelFile, String[] entries) {
+        DroneApplication.pushInfoMessage("Start saving");
+        String path = modelFile.getAbsolutePath();
+        File manifest = new File(path.substring(0, path.length() - MODEL_EXTENSION.length()) + MANIFEST_EXTENSION);
+        File temporaryManifest = new File(manifest.getAbsolutePath() + ".tmp");
+        File temporaryModel = new File(path + ".tmp");
+
+        Writer writer = null;
+        try {
+            writer = new FileWriter(temporaryManifest);
+            for (String entry : entries) {
+                writer.write(entry);
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write the manifest: " + e);
+        } finally {
+            if(writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        recognizer.save(temporaryModel.getAbsolutePath());
+        if(!temporaryManifest.renameTo(manifest) || !temporaryModel.renameTo(modelFile)) {
+            DroneApplication.pushErrorMessage("Failed to save the model: " + modelFile);
+            Log.e(TAG, "Failed to save the model: " + modelFile);
+        }
+        DroneApplication.pushInfoMessage("End saving");
+    }
+
+    /**
+     * Find a model of the engine trained on a subset of the training set, i.e. which only misses the
+     * added images
+     * @param engine (Engine): the recognition algorithm
+     * @param entries (String[]): the entries of the current training set
+     * @return (File): the model file, null if none
+     */
+    private File previousModel(Engine engine, String[] entries) {
+        Set<String> current = new HashSet<>(Arrays.asList(entries));
+        for (File manifest : modelFiles(engine, MANIFEST_EXTENSION)) {
+            String path = manifest.getAbsolutePath();
+            File modelFile = new File(path.substring(0, path.length() - MANIFEST_EXTENSION.length()) + MODEL_EXTENSION);
+            List<String> learned = readManifest(manifest);
+            if(modelFile.exists() && learned != null && current.containsAll(learned)) {
+                return modelFile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param modelFile (File): a previous model (see previousModel)
+     * @param imageFiles (File[]): the images of the current training set
+     * @param entries (String[]): their entries
+     * @return (File[]): the images the previous model did not learn
+     */
+    private File[] addedImages(File modelFile, File[] imageFiles, String[] entries) {
+        String path = modelFile.getAbsolutePath();
+        File manifest = new File(path.substring(0, path.length() - MODEL_EXTENSION.length()) + MANIFEST_EXTENSION);
+        Set<String> learned = new HashSet<>(readManifest(manifest));
+        List<File> added = new ArrayList<>();
+        for (int i = 0; i < imageFiles.length; i++) {
+            if(!learned.contains(entries[i])) {
+                added.add(imageFiles[i]);
+            }
+        }
+        return added.toArray(new File[added.size()]);
+    }
+
+    /**
+     * @return (List): the entries of a manifest, null if it can not be read
+     */
+    private static List<String> readManifest(File manifest) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(manifest));
+            List<String> entries = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                entries.add(line);
+            }
+            return entries;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read the manifest: " + e);
+            return null;
+        } finally {
+            if(reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return (File[]): the files of the engine models with an extension
+     */
+    private File[] modelFiles(final Engine engine, final String extension) {
+        File[] files = new File(EXTERNAL_DIRECTORY).listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(engine.modelPrefix) && name.endsWith(extension);
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    /**
+     * Delete the models of the previous training sets of an engine (about 50Mo each for eigen faces)
+     * @param engine (Engine): the recognition algorithm
+     * @param name (String): name of the model to keep (without extension)
+     */
+    private void deleteOtherModels(Engine engine, String name) {
+        for (String extension : new String[]{MODEL_EXTENSION, MANIFEST_EXTENSION}) {
+            for (File other : modelFiles(engine, extension)) {
+                if(!other.getName().equals(name + extension) && !other.delete()) {
+                    Log.w(TAG, "Failed to delete the model: " + other);
+                }
             }
-            DroneApplication.pushInfoMessage("Start training");
-            faceRecognizer.train(images, labelsMat);
-            DroneApplication.pushInfoMessage("End training, Start saving");
-            faceRecognizer.save(EXTERNAL_DIRECTORY+MODEL_FILE_PATH);
-            isTrained = true;
-            DroneApplication.pushInfoMessage("End saving");
         }
     }
 }
\ No newline at end of file
@@ -2,7 +2,6 @@ package ch.epfl.droneproject.module;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.os.Handler;
 import android.util.Log;
 import android.view.MotionEvent;
@@ -10,23 +9,21 @@ import android.view.View;
 
 import com.parrot.arsdk.arcommands.ARCOMMANDS_SKYCONTROLLER_COPILOTING_SETPILOTINGSOURCE_SOURCE_ENUM;
 
+import org.bytedeco.javacpp.BytePointer;
 import org.bytedeco.javacpp.Loader;
-import org.bytedeco.javacpp.indexer.UByteBufferIndexer;
 import org.bytedeco.javacpp.opencv_objdetect;
 
 import static org.bytedeco.javacpp.opencv_core.*;
 import static org.bytedeco.javacpp.opencv_imgproc.*;
-import static org.bytedeco.javacpp.opencv_objdetect.*;
 
 import java.io.File;
-import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import ch.epfl.droneproject.DroneApplication;
 import ch.epfl.droneproject.view.BebopVideoView;
 import ch.epfl.droneproject.view.ConsoleView;
+import ch.epfl.droneproject.view.DecodedFrame;
 import ch.epfl.droneproject.view.OpenCVView;
 
 /**
@@ -39,12 +36,33 @@ import ch.epfl.droneproject.view.OpenCVView;
  *
  * This file contains some private classes:
  * @see ColorBlobDetector
- * @see FaceDetector
+ * @see FaceResult
+ * @see FaceThread
  * @see OpenCVThread
+ * And uses the package classes:
+ * @see ColorThreshold
+ * @see DetectionBuffer
+ * @see FaceDetector
+ * @see FaceDetectorBenchmark
+ * @see FaceRecognizerBenchmark
+ * @see FaceTrackCache
+ * @see FrameBudgetGovernor
+ * @see FramePlanes
+ * @see FrameRing
+ * @see GimbalHistory
+ * @see NativeArena
+ * @see ParallelFaceDetector
+ * @see PilotingLoop
+ * @see TargetTracker
+ * @see TelemetryRing
+ * @see VisionMetrics
+ * @see VisualServo
  */
 public class AutoPilotModule {
 
     private static final String TAG = "AutoPilot";
+    // File of the application storage where the vision metrics are dumped
+    private static final String METRICS_FILE = "vision_metrics.txt";
 
     // Is the Autopilot engaged
     private boolean isEngaged;
@@ -63,10 +81,29 @@ public class AutoPilotModule {
 
     // The opencv thread
     private OpenCVThread openCVThread;
+    // Fixed rate sender of the piloting commands of the vision, running with the opencv thread
+    private final PilotingLoop pilotingLoop;
+    // Face detection algorithm used by the face thread, can be changed at any time
+    private volatile FaceDetector.Backend faceBackend;
+    // Face recognition algorithm used by the face thread, can be changed at any time
+    private volatile AutoFaceRecognizer.Engine faceEngine;
+    // Detect and recognize all the faces of the frames, or only the biggest one
+    private volatile boolean multiFace;
+    // Time budget of the vision work per frame in milliseconds, can be changed at any time
+    private volatile int frameBudgetMs;
+    // Set to check the face training set again (see reloadFaceModel)
+    private volatile boolean reloadFaceModel;
+    // Latency of the vision stages, frame rate and dropped frames of the current vision thread
+    private final VisionMetrics visionMetrics;
+    // Recent tilt of the camera, to compensate the video latency in the servo with the yaw of telemetry
+    private final GimbalHistory gimbalHistory;
+    // Attitude and position history of the drone, for the autopilot and the map
+    private final TelemetryRing telemetry;
 
 
     /**
-     * Default Constructor
+     * Default Constructor. The piloting loop, which sends the commands of the procedures and of the
+     * servo, runs while the autopilot is engaged
      * @param skeModule (SkyControllerExtensionModule)
      */
     public AutoPilotModule(SkyControllerExtensionModule skeModule) {
@@ -77,8 +114,24 @@ public class AutoPilotModule {
 
         this.mSKEModule = skeModule;
         this.mFlightPlanerModule = new FlightPlanerModule();
-        this.droneSettings = new DroneStatesSettingsProceduresModule(skeModule, this);
+        this.pilotingLoop = new PilotingLoop(skeModule);
+        this.droneSettings = new DroneStatesSettingsProceduresModule(skeModule, pilotingLoop, this);
         this.openCVThread = null;
+        this.faceBackend = FaceDetector.Backend.HAAR_LEGACY;
+        this.faceEngine = AutoFaceRecognizer.Engine.EIGEN;
+        this.multiFace = false;
+        this.frameBudgetMs = FrameBudgetGovernor.DEFAULT_BUDGET_MS;
+        this.visionMetrics = new VisionMetrics();
+        this.gimbalHistory = new GimbalHistory();
+        this.telemetry = new TelemetryRing();
+    }
+
+    /**
+     * Stop the piloting loop if the autopilot is still engaged, once it sent a last hover command.
+     * Called when the drone is disposed
+     */
+    public void dispose() {
+        pilotingLoop.stop();
     }
 
     /**
@@ -105,14 +158,24 @@ public class AutoPilotModule {
         return mFlightPlanerModule;
     }
 
+    /**
+     * Getter for the telemetry history, written by the drone callbacks
+     * @return telemetry (TelemetryRing): attitude and position of the drone in time
+     */
+    public TelemetryRing getTelemetry() {
+        return telemetry;
+    }
+
     /**
      * Engage the autopilot by giving full control to the application (i.e SkyController2 loose control)
      * This method put a "listener" on SkyController axis (using grabAxis) to allow automatic disengage
      * of the autopilot on new axis input (i.e. the operator can get back the controls at any time)
      * If the drone is in Mission or in FlightPlan, the engage start/continue it/them.
+     * The piloting loop starts sending the commands of the autopilot.
      */
     public void engage(){
         this.isEngaged = true;
+        pilotingLoop.start();
         mSKEModule.setController(ARCOMMANDS_SKYCONTROLLER_COPILOTING_SETPILOTINGSOURCE_SOURCE_ENUM.ARCOMMANDS_SKYCONTROLLER_COPILOTING_SETPILOTINGSOURCE_SOURCE_CONTROLLER);
         int b1 = 1;
         b1 = b1 | (1 << 1);
@@ -132,9 +195,11 @@ public class AutoPilotModule {
      * Disengage the autopilot by giving back full control to the operator (i.e. SkyController2 has full control)
      * This method remove the listener on the axis @see engage
      * If the drone is in FlightPlan or Mission, this disengage pause it/them
+     * The piloting loop stops once it sent a last hover command.
      */
     public void disengage(){
         this.isEngaged = false;
+        pilotingLoop.stop();
         mSKEModule.setController(ARCOMMANDS_SKYCONTROLLER_COPILOTING_SETPILOTINGSOURCE_SOURCE_ENUM.ARCOMMANDS_SKYCONTROLLER_COPILOTING_SETPILOTINGSOURCE_SOURCE_SKYCONTROLLER);
         mSKEModule.grabAxis(0);
         if(this.isInFlightPlan){
@@ -253,6 +318,7 @@ public class AutoPilotModule {
      */
     public void setCameraSettings(float tilt, float pan){
         droneSettings.setCameraSettings(tilt, pan);
+        gimbalHistory.recordTilt(System.nanoTime(), tilt);
     }
 
     /**
@@ -265,6 +331,7 @@ public class AutoPilotModule {
      */
     public void updateDroneSettings(float roll, float pitch, float yaw){
         droneSettings.update(roll, pitch, yaw);
+        telemetry.recordAttitude(System.nanoTime(), roll, pitch, yaw);
         mFlightPlanerModule.updateDroneOrientation(yaw);
     }
 
@@ -278,6 +345,7 @@ public class AutoPilotModule {
      */
     public void updateDroneSettings(double lat, double lon, double alt){
         droneSettings.update(lat, lon, alt);
+        telemetry.recordPosition(System.nanoTime(), lat, lon, alt);
         mFlightPlanerModule.updateDronePosition(lat, lon, alt);
     }
 
@@ -312,60 +380,233 @@ public class AutoPilotModule {
         }
     }
 
+    /**
+     * Select the face detection algorithm. The face thread switches to it before its next detection
+     * @see FaceDetector.Backend
+     * @param backend (FaceDetector.Backend): the new algorithm
+     */
+    public void setFaceDetectorBackend(FaceDetector.Backend backend) {
+        this.faceBackend = backend;
+        DroneApplication.pushInfoMessage("Face detector: " + backend);
+    }
+
+    /**
+     * Getter for the current face detection algorithm
+     * @return faceBackend (FaceDetector.Backend): the face detector backend
+     */
+    public FaceDetector.Backend getFaceDetectorBackend() {
+        return faceBackend;
+    }
+
+    /**
+     * Select the face recognition algorithm. Its model is loaded or trained in the background and
+     * used by the face thread once ready
+     * @see AutoFaceRecognizer.Engine
+     * @param engine (AutoFaceRecognizer.Engine): the new algorithm
+     */
+    public void setFaceRecognizerEngine(AutoFaceRecognizer.Engine engine) {
+        this.faceEngine = engine;
+        DroneApplication.pushInfoMessage("Face recognizer: " + engine);
+    }
+
+    /**
+     * Getter for the current face recognition algorithm
+     * @return faceEngine (AutoFaceRecognizer.Engine): the face recognizer engine
+     */
+    public AutoFaceRecognizer.Engine getFaceRecognizerEngine() {
+        return faceEngine;
+    }
+
+    /**
+     * Detect and recognize all the faces of the frames (e.g. several people in view) instead of the
+     * biggest one only. The faces are recognized as a batch and the followed face is the closest to
+     * the target
+     * @see AutoFaceRecognizer#processAll
+     * @param multiFace (boolean): true to recognize all the faces
+     */
+    public void setMultiFace(boolean multiFace) {
+        this.multiFace = multiFace;
+        DroneApplication.pushInfoMessage("Multi face: " + multiFace);
+    }
+
+    /**
+     * @return multiFace (boolean): true if all the faces are recognized
+     */
+    public boolean isMultiFace() {
+        return multiFace;
+    }
+
+    /**
+     * Train and measure all the face recognizer engines on the training images of the phone, in the
+     * background. The results (training time, predict latency, accuracy and memory of each engine)
+     * are pushed in the console once done.
+     * @see FaceRecognizerBenchmark
+     */
+    public void benchmarkFaceRecognizers() {
+        DroneApplication.pushInfoMessage("Face recognizer benchmark: running");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                new FaceRecognizerBenchmark().run();
+            }
+        }, "RecognizerBenchmark").start();
+    }
+
+    /**
+     * Check the face training images again: if they changed, a new model is trained in the background
+     * and used by the face thread once ready, without pausing the vision
+     * @see AutoFaceRecognizer
+     */
+    public void reloadFaceModel() {
+        this.reloadFaceModel = true;
+    }
+
+    /**
+     * Getter for the vision metrics, e.g. for an overlay on the video. They are also appended every
+     * few seconds to METRICS_FILE in the application storage while the vision runs
+     * @see VisionMetrics
+     * @return (String): the frame rate, the dropped frames and the latency percentiles of each stage
+     */
+    public String getVisionMetrics() {
+        return visionMetrics.text();
+    }
+
+    /**
+     * @see PilotingLoop#counters
+     * @return (String): the numbers of piloting commands sent and suppressed (unchanged)
+     */
+    public String getPilotingCounters() {
+        return pilotingLoop.counters();
+    }
+
+    /**
+     * Set the time budget of the vision work per frame. The vision thread lowers the quality of the
+     * detections (resolution, detection rate, face scales) while it takes more than the budget
+     * @see FrameBudgetGovernor
+     * @param ms (int): the budget in milliseconds, e.g. 33 for 30 fps
+     */
+    public void setFrameBudget(int ms) {
+        this.frameBudgetMs = ms;
+        DroneApplication.pushInfoMessage("Frame budget: " + ms + " ms");
+    }
+
+    /**
+     * Getter for the time budget of the vision work per frame
+     * @return frameBudgetMs (int): the budget in milliseconds
+     */
+    public int getFrameBudget() {
+        return frameBudgetMs;
+    }
+
+    /**
+     * Collect a set of frames from the stream and run all the face detector backends on it.
+     * The results (ms/frame and hit rate of each backend) are pushed in the console once done.
+     * @see FaceDetectorBenchmark
+     */
+    public void benchmarkFaceDetectors() {
+        if(openCVThread != null) {
+            openCVThread.requestBenchmark();
+        }
+    }
+
     /**
      * Color Blob Detector Class
-     * Each time process is called with an input frame, this class compute a new list of CvRect
-     * containing the detected blobs.
-     * Use constructor to create a color blob detector, process to compute the list of blobs, getContour
-     * to access the computed blobs and destroy once you does not need the class any more.
-     * The Color is in HSV format and can be set using setHsvColor
+     * Each time process is called with an input frame, this class fill the DetectionBuffer of each
+     * target with its detected blobs (score is the blob area).
+     * Use constructor to create a color blob detector, process to compute the blobs and getBlobs
+     * to access the computed blobs of a target.
+     * The Color of each target is in HSV format and can be set using setHsvColor
+     *
+     * Up to MAX_TARGETS colors are searched in a single sweep over the frame planes, which computes
+     * the dilated mask of all the colors at once (see ColorThreshold).
+     * The blobs of a target are the 8-connected components of its bit of the mask, labeled in Java in
+     * preallocated arrays: once created, process does not allocate any Java object nor native pointer.
+     *
+     * Once a blob is tracked (see track), only a search window around it is processed. The window
+     * grows on each miss and the full frame is scanned again after MAX_MISSES consecutive misses.
+     * The blob is lost only if this full frame scan does not find it either (see isLost).
+     * The sweep covers the bounding box of the regions of the processed targets.
      */
     private class ColorBlobDetector {
 
+        static final int MAX_TARGETS = 4;
+
+        // The search window side is WINDOW_FACTOR times the tracked blob side, at least MIN_WINDOW pixels
+        private static final int WINDOW_FACTOR = 3;
+        private static final int MIN_WINDOW = 64;
+        private static final int MAX_MISSES = 5;
+        private static final int MAX_BLOBS = 32;
+
         // Color radius for range checking in HSV color space
         private final CvScalar mColorRadius = new CvScalar(25,50,50,0);
-        // Minimum contour area in percent for contours filtering
+        // Minimum contour area in percent for contours filtering (in pixels of the level 2)
         private final double mMinContourArea = 60;
+        // Level of the mask processed: 1 or 2 (see setLevel)
+        private int level;
 
-        // Lower and Upper bounds for range checking in HSV color space
+        private final DetectionBuffer[] mBlobs;
+        // Range checking in HSV color space through a lookup table, one color per target
+        private final ColorThreshold mThreshold;
 
-        private List<CvRect> mContours;
-        private CvScalar mLB;
-        private CvScalar mUB;
+        // Dilated mask of the processed region, row by row (allocated for the level 1)
+        private final byte[] mMask;
 
-        // Cache
-        IplImage mPyrDown2Mat;
-        IplImage mPyrDown4Mat;
-        IplImage mHsvMat;
-        IplImage mMask;
-        IplImage mDilatedMask;
+        // Connected components labeling: label of each mask pixel, union-find parents and
+        // statistics (area and bounding box) of each label
+        private final int[] labels;
+        private final int[] parents, areas, minXs, minYs, maxXs, maxYs;
 
-        CvMemStorage storage;
+        // Search window of each target in full resolution (aligned on 4 pixels for the two levels of the mask)
+        private final int width, height;
+        private final int[] winX, winY, winW, winH;
+        private final boolean[] isTracking, isLost;
+        private final int[] misses;
 
+        /**
+         * Default constructor
+         * @param width (int): frame width, aligned on 4 pixels
+         * @param height (int): frame height, aligned on 4 pixels
+         */
         ColorBlobDetector(int width, int height){
-            mContours = new ArrayList<>();
-            mLB = new CvScalar(0);
-            mUB = new CvScalar(0);
-
-            mPyrDown2Mat = IplImage.create(width/2, height/2, IPL_DEPTH_8U, 4);
-            mPyrDown4Mat = IplImage.create(width/4, height/4, IPL_DEPTH_8U, 4);
-            mHsvMat = IplImage.create(width/4, height/4, IPL_DEPTH_8U, 3);
-            mMask = IplImage.create(width/4, height/4, IPL_DEPTH_8U, 1);
-            mDilatedMask = IplImage.create(width/4, height/4, IPL_DEPTH_8U, 1);
+            this.width = width;
+            this.height = height;
 
-            storage = CvMemStorage.create();
-        }
-
-        void destroy(){
-            cvReleaseImage(mPyrDown2Mat);
-            cvReleaseImage(mPyrDown4Mat);
-            cvReleaseImage(mHsvMat);
-            cvReleaseImage(mMask);
-            cvReleaseImage(mDilatedMask);
+            mBlobs = new DetectionBuffer[MAX_TARGETS];
+            for (int k = 0; k < MAX_TARGETS; k++) {
+                mBlobs[k] = new DetectionBuffer(MAX_BLOBS);
+            }
+            mThreshold = new ColorThreshold(width);
+            winX = new int[MAX_TARGETS];
+            winY = new int[MAX_TARGETS];
+            winW = new int[MAX_TARGETS];
+            winH = new int[MAX_TARGETS];
+            isTracking = new boolean[MAX_TARGETS];
+            isLost = new boolean[MAX_TARGETS];
+            misses = new int[MAX_TARGETS];
+
+            level = 2;
+            int maskSize = (width/2) * (height/2);
+            mMask = new byte[maskSize];
+            labels = new int[maskSize];
+            // At most one provisional label every two pixels (plus the background label 0)
+            int maxLabels = maskSize / 2 + 2;
+            parents = new int[maxLabels];
+            areas = new int[maxLabels];
+            minXs = new int[maxLabels];
+            minYs = new int[maxLabels];
+            maxXs = new int[maxLabels];
+            maxYs = new int[maxLabels];
         }
 
 
-        void setHsvColor(double H, double S, double V) {
+        /**
+         * Set the color of a target and forget its tracked blob
+         * @param target (int): index of the target, lower than MAX_TARGETS
+         * @param H (double): hue (full range)
+         * @param S (double): saturation
+         * @param V (double): value
+         */
+        void setHsvColor(int target, double H, double S, double V) {
 
             //System.out.println("H="+H+", S="+S+", V="+V);
 
@@ -378,114 +619,451 @@ public class AutoPilotModule {
             double mLB2 = V - mColorRadius.val(2);
             double mUB2 = V + mColorRadius.val(2);
 
-            double mLB3 = 0;
-            double mUB3 = 255;
+            // The lookup table is only rebuilt here, i.e. on calibration
+            mThreshold.setRange(target, mLB0, mUB0, mLB1, mUB1, mLB2, mUB2);
+            resetTracking(target);
+        }
+
+        /**
+         * Stop searching the color of a target
+         * @param target (int): index of the target
+         */
+        void removeTarget(int target) {
+            mThreshold.clearRange(target);
+            resetTracking(target);
+            mBlobs[target].clear();
+        }
+
 
-            mLB = new CvScalar(mLB0, mLB1, mLB2, mLB3);
-            mUB = new CvScalar(mUB0, mUB1, mUB2, mUB3);
+        /**
+         * Center the search window of a target on its tracked blob. Called each time the blob is found
+         * @param target (int): index of the target
+         * @param x (int): center x of the blob (full resolution)
+         * @param y (int): center y of the blob (full resolution)
+         * @param w (int): width of the blob
+         * @param h (int): height of the blob
+         */
+        void track(int target, int x, int y, int w, int h) {
+            isTracking[target] = true;
+            isLost[target] = false;
+            misses[target] = 0;
+            setWindow(target, x, y, Math.max(MIN_WINDOW, WINDOW_FACTOR * w), Math.max(MIN_WINDOW, WINDOW_FACTOR * h));
         }
 
+        /**
+         * Forget the tracked blob of a target: next process will scan the full frame for it
+         * @param target (int): index of the target
+         */
+        void resetTracking(int target) {
+            isTracking[target] = false;
+            isLost[target] = false;
+            misses[target] = 0;
+        }
 
-        void process(IplImage rgbaImage) {
+        /**
+         * @param target (int): index of the target
+         * @return (boolean): true if the last process scanned the full frame and found no blob of the target
+         */
+        boolean isLost(int target) {
+            return isLost[target];
+        }
 
-            //Smoothes the input image with gaussian kernel and then down-samples it.
-            cvPyrDown(rgbaImage, mPyrDown2Mat);
-            cvPyrDown(mPyrDown2Mat, mPyrDown4Mat);
+        private void setWindow(int target, int x, int y, int w, int h) {
+            winW[target] = Math.min((w + 3) & ~3, width);
+            winH[target] = Math.min((h + 3) & ~3, height);
+            winX[target] = Math.min(Math.max(x - winW[target] / 2, 0), width - winW[target]) & ~3;
+            winY[target] = Math.min(Math.max(y - winH[target] / 2, 0), height - winH[target]) & ~3;
+        }
 
-            //Converts input Mat pixels from one color space to another
-            cvCvtColor(mPyrDown4Mat, mHsvMat, COLOR_RGB2HSV_FULL);
+        /**
+         * @return (boolean): true if only the search window of the target is processed
+         */
+        private boolean inWindow(int target) {
+            return isTracking[target] && misses[target] < MAX_MISSES;
+        }
 
-            cvInRangeS(mHsvMat, mLB, mUB, mMask);
-            cvDilate(mMask, mDilatedMask);
+        /**
+         * Select the level of the mask processed: the level 1 is more precise (smaller blobs are found)
+         * while the level 2 costs 4 times less
+         * @param level (int): 1 or 2
+         */
+        void setLevel(int level) {
+            this.level = level;
+        }
 
-            CvSeq contour = new CvSeq(null);
-            //cvFindContours(mDilatedMask, storage, contour, Loader.sizeof(CvContour.class), CV_RETR_LIST, CV_CHAIN_APPROX_SIMPLE);
-            cvFindContours(mDilatedMask, storage, contour, Loader.sizeof(CvContour.class), RETR_EXTERNAL, CV_CHAIN_APPROX_SIMPLE);
+        /**
+         * Find the blobs of the selected targets in the current frame, in a single sweep
+         * @param planes (FramePlanes): the Y, U and V planes of the frame
+         * @param targets (int): bit k set to process the target k
+         */
+        void process(FramePlanes planes, int targets) {
 
-            mContours.clear();
+            // Restrict the sweep to the bounding box of the search windows while all the blobs are tracked
+            int x1 = width, y1 = height, x2 = 0, y2 = 0;
+            for (int k = 0; k < MAX_TARGETS; k++) {
+                if ((targets & 1 << k) == 0) {
+                    continue;
+                }
+                if (!inWindow(k)) {
+                    x1 = 0; y1 = 0; x2 = width; y2 = height;
+                    break;
+                }
+                x1 = Math.min(x1, winX[k]);
+                y1 = Math.min(y1, winY[k]);
+                x2 = Math.max(x2, winX[k] + winW[k]);
+                y2 = Math.max(y2, winY[k] + winH[k]);
+            }
+            if (x2 <= x1 || y2 <= y1) {
+                return;
+            }
+
+            // Down-sampled, thresholded and dilated in one sweep over the frame planes
+            mThreshold.apply(planes.luma(), planes.uPlane(), planes.vPlane(), level, x1, y1, x2 - x1, y2 - y1, mMask);
+
+            for (int k = 0; k < MAX_TARGETS; k++) {
+                if ((targets & 1 << k) == 0) {
+                    continue;
+                }
+                boolean inWindow = inWindow(k);
+                int x = 0, y = 0, w = width, h = height;
+                if (inWindow) {
+                    x = winX[k];
+                    y = winY[k];
+                    w = winW[k];
+                    h = winH[k];
+                }
+                findBlobs(k, (x2 - x1) >> level, (x1 >> level), (y1 >> level),
+                        (x - x1) >> level, (y - y1) >> level, w >> level, h >> level);
+
+                if (mBlobs[k].size() == 0) {
+                    if (inWindow) {
+                        // Missed in the window: grow it around the same center for the next frame
+                        misses[k]++;
+                        setWindow(k, winX[k] + winW[k] / 2, winY[k] + winH[k] / 2, 2 * winW[k], 2 * winH[k]);
+                    } else {
+                        isLost[k] = true;
+                    }
+                }
+            }
+        }
 
-            // To check if an output argument is null we may call either isNull() or equals(null).
-            while (contour != null && !contour.isNull()) {
-                if (contour.elem_size() > 0) {
-                    CvSeq points = cvApproxPoly(contour, Loader.sizeof(CvContour.class), storage, CV_POLY_APPROX_DP, cvContourPerimeter(contour)*0.02, 0);
-                    if (cvContourArea(points, CV_WHOLE_SEQ, 0) > mMinContourArea){
-                        CvRect rect = cvBoundingRect(points);
-                        mContours.add(new CvRect(rect.x()*4, rect.y()*4, rect.width()*4, rect.height()*4));
+        /**
+         * Label the 8-connected components of a target in a region of the dilated mask in a single pass
+         * and keep the big enough ones (in full resolution) in its DetectionBuffer
+         * @param target (int): index of the target, i.e. its bit in the mask
+         * @param stride (int): width of the mask rows
+         * @param ox (int): x of the mask at the processed level
+         * @param oy (int): y of the mask at the processed level
+         * @param rx (int): region x in the mask
+         * @param ry (int): region y in the mask
+         * @param rw (int): region width
+         * @param rh (int): region height
+         */
+        private void findBlobs(int target, int stride, int ox, int oy, int rx, int ry, int rw, int rh) {
+
+            int bit = 1 << target;
+            int next = 1;
+
+            for (int j = 0; j < rh; j++) {
+                int row = (ry + j) * stride + rx;
+                for (int i = 0; i < rw; i++) {
+                    int p = j * rw + i;
+                    if ((mMask[row + i] & bit) == 0) {
+                        labels[p] = 0;
+                        continue;
+                    }
+
+                    // Join the labels of the already visited neighbors: left, top left, top and top right
+                    int l = 0;
+                    if (i > 0) l = union(l, labels[p - 1]);
+                    if (j > 0) {
+                        if (i > 0) l = union(l, labels[p - rw - 1]);
+                        l = union(l, labels[p - rw]);
+                        if (i < rw - 1) l = union(l, labels[p - rw + 1]);
+                    }
+
+                    if (l == 0) {
+                        l = next++;
+                        parents[l] = l;
+                        areas[l] = 0;
+                        minXs[l] = i;
+                        maxXs[l] = i;
+                        minYs[l] = j;
+                        maxYs[l] = j;
                     }
+                    labels[p] = l;
+                    areas[l]++;
+                    if (i < minXs[l]) minXs[l] = i;
+                    if (i > maxXs[l]) maxXs[l] = i;
+                    if (j < minYs[l]) minYs[l] = j;
+                    if (j > maxYs[l]) maxYs[l] = j;
+                }
+            }
+
+            // Merge the statistics of the joined labels into their root
+            for (int l = next - 1; l > 0; l--) {
+                int r = find(l);
+                if (r != l) {
+                    areas[r] += areas[l];
+                    if (minXs[l] < minXs[r]) minXs[r] = minXs[l];
+                    if (maxXs[l] > maxXs[r]) maxXs[r] = maxXs[l];
+                    if (minYs[l] < minYs[r]) minYs[r] = minYs[l];
+                    if (maxYs[l] > maxYs[r]) maxYs[r] = maxYs[l];
+                }
+            }
+
+            // Scale from the processed level to the full resolution
+            int scale = 1 << level;
+            double minArea = mMinContourArea * 16 / (scale * scale);
+            int x0 = ox + rx;
+            int y0 = oy + ry;
+
+            DetectionBuffer blobs = mBlobs[target];
+            blobs.clear();
+            for (int l = 1; l < next; l++) {
+                if (parents[l] == l && areas[l] > minArea) {
+                    blobs.add((minXs[l] + x0) * scale, (minYs[l] + y0) * scale,
+                            (maxXs[l] - minXs[l] + 1) * scale, (maxYs[l] - minYs[l] + 1) * scale, areas[l] * scale * scale);
                 }
-                contour = contour.h_next();
             }
+        }
 
+        private int find(int l) {
+            while (parents[l] != l) {
+                parents[l] = parents[parents[l]];
+                l = parents[l];
+            }
+            return l;
         }
 
-        List<CvRect> getContours() {
-            return mContours;
+        /**
+         * Join two labels, the smallest root is kept
+         * @param a (int): a root label or 0 (i.e. background)
+         * @param b (int): a label or 0 (i.e. background)
+         * @return (int): the root of the joined labels
+         */
+        private int union(int a, int b) {
+            if (b == 0) {
+                return a;
+            }
+            b = find(b);
+            if (a == 0 || a == b) {
+                return b;
+            }
+            if (a < b) {
+                parents[b] = a;
+                return a;
+            }
+            parents[a] = b;
+            return b;
+        }
+
+        /**
+         * @param target (int): index of the target
+         * @return (DetectionBuffer): the blobs of the target found by the last process
+         */
+        DetectionBuffer getBlobs(int target) {
+            return mBlobs[target];
         }
     }
 
     /**
-     * Face Detector Class
-     * Each time process is called with an input frame, this class compute a new list of CvRect
-     * containing the detected face.
-     * Use constructor to create a face detector, process to compute the list of faces, getContour
-     * to access the computed faces and destroy once you does not need the class any more
-     * assume the file /res/raw/haarcascade_frontalface_alt_old.xml exists in the application apk
-     * Note FaceDetector of java cv is not compatible with the new format of cascade files.
+     * Result of the face stage for a given frame: the faces found, the biggest first, and the
+     * Recognized person of each face. Written by the FaceThread and copied by the OpenCVThread
      */
-    private class FaceDetector{
+    private static class FaceResult {
+
+        long sequence = -1;
+        boolean found;
+        final DetectionBuffer faces = new DetectionBuffer(FaceDetector.MAX_FACES);
+        final AutoFaceRecognizer.Recognized[] recognized = new AutoFaceRecognizer.Recognized[FaceDetector.MAX_FACES];
+
+        void copyTo(FaceResult other){
+            other.sequence = sequence;
+            other.found = found;
+            other.faces.clear();
+            for (int i = 0; i < faces.size(); i++) {
+                other.faces.add(faces.x(i), faces.y(i), faces.width(i), faces.height(i), faces.score(i));
+                other.recognized[i] = recognized[i];
+            }
+        }
+    }
 
-        private opencv_objdetect.CvHaarClassifierCascade classifier;
-        private List<CvRect> mContours;
-        IplImage grayImage;
+    /**
+     * Face Thread class
+     * Second stage of the vision pipeline. Detect and recognize faces on the frames submitted by the
+     * OpenCVThread through a bounded FrameRing. Frames are dropped when the ring is full, hence
+     * slow detections never stall the blob tracking and the drone corrections.
+     * The latest result is kept with the sequence number of the frame it was computed on.
+     * The detection itself runs on a ForkJoinPool of one thread per core.
+     * @see FrameRing
+     * @see FaceDetector
+     * @see ParallelFaceDetector
+     * @see AutoFaceRecognizer
+     * @see FaceTrackCache
+     */
+    private class FaceThread extends Thread {
+
+        private static final int RING_CAPACITY = 2;
+        private static final int FRAME_TIMEOUT = 100;
+
+        private final int width, height;
+        private final FrameRing ring;
+        private final FaceResult result;
+        private final CvRect faceRoi;
+        // Track of each face of the frame, faces to recognize and their identities
+        private final int[] tracks, batch;
+        private final AutoFaceRecognizer.Recognized[] recognized;
+        private final FrameBudgetGovernor governor;
+        // Owner of the native buffers of the face stage, released by the OpenCVThread once joined
+        private final NativeArena arena;
+        private volatile boolean interrupted;
+
+        private FaceThread(int width, int height, FrameBudgetGovernor governor, NativeArena arena){
+            this.width = width;
+            this.height = height;
+            this.governor = governor;
+            this.arena = arena;
+            this.ring = new FrameRing(RING_CAPACITY, width, height, 1, arena, NativeArena.STAGE_FACE);
+            this.result = new FaceResult();
+            this.faceRoi = new CvRect();
+            this.tracks = new int[FaceDetector.MAX_FACES];
+            this.batch = new int[FaceDetector.MAX_FACES];
+            this.recognized = new AutoFaceRecognizer.Recognized[FaceDetector.MAX_FACES];
+            this.interrupted = false;
+        }
 
-        CvMemStorage storage;
+        public void interrupt() {
+            interrupted = true;
+            super.interrupt();
+        }
 
-        FaceDetector(int width, int height) {
-            this.mContours = new ArrayList<>();
+        /**
+         * Queue a frame for face detection, drop it if the thread is busy. Called by the OpenCVThread
+         * @param grayImage (IplImage): luma of the frame to process
+         * @param sequence (long): sequence number of the frame
+         * @return (boolean): true if the frame has been queued
+         */
+        boolean submit(IplImage grayImage, long sequence){
+            return ring.offer(grayImage, sequence);
+        }
 
-            try {
-                // Load the classifier file from Java resources.
-                File classifierFile = Loader.extractResource(getClass(),
-                        "/res/raw/haarcascade_frontalface_alt_old.xml",
-                        DroneApplication.getApplication().getContext().getCacheDir(), "classifier", ".xml");
-                classifierFile.deleteOnExit();
-                if (classifierFile.length() <= 0) {
-                    throw new IOException("Could not extract the classifier file from Java resource.");
-                }
-
-                classifier = new opencv_objdetect.CvHaarClassifierCascade(cvLoad(classifierFile.getAbsolutePath()));
-                if (classifier.isNull()) {
-                    throw new IOException("Could not load the classifier file.");
-                }
-                grayImage = IplImage.create(width, height, IPL_DEPTH_8U, 1);
-                // Objects allocated with a create*() or clone() factory method are automatically released
-                // by the garbage collector, but may still be explicitly released by calling release().
-                // You shall NOT call cvReleaseImage(), cvReleaseMemStorage(), etc. on objects allocated this way.
-                storage = CvMemStorage.create();
-
-            } catch (IOException e) {
-                e.printStackTrace();
-                DroneApplication.pushErrorMessage("Failed to load cascade. Exception thrown: " + e);
-                Log.e(TAG, "Failed to load cascade. Exception thrown: " + e);
+        /**
+         * Copy the latest result. Called by the OpenCVThread
+         * @param out (FaceResult): where to copy the result
+         */
+        void readResult(FaceResult out){
+            synchronized (result) {
+                result.copyTo(out);
             }
         }
 
-        void destroy(){
-            cvReleaseImage(grayImage);
-        }
+        @Override
+        public void run() {
+
+            // The scales of the detection are shared between all the cores
+            ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+            // Loading or training the recognizer model is done in the background
+            FaceDetector faceDetector = FaceDetector.create(faceBackend, pool);
+            AutoFaceRecognizer faceRecognizer = new AutoFaceRecognizer(faceEngine, arena);
+            int modelVersion = faceRecognizer.modelVersion();
+            // The identity of a face is only recognized again when needed
+            FaceTrackCache identities = new FaceTrackCache(arena);
+            // Quality step of the governor applied to the detector, -1 to apply it on the first frame
+            int step = -1;
+
+            while (!interrupted) {
+                int slot;
+                try {
+                    slot = ring.take(FRAME_TIMEOUT);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    slot = -1;
+                }
+                if (slot < 0) {
+                    continue;
+                }
 
-        void process(IplImage rgbaImage) {
-            // Let's try to detect some faces! but we need a grayscale image...
-            cvCvtColor(rgbaImage, grayImage, COLOR_RGB2GRAY);
-            CvSeq faces = cvHaarDetectObjects(grayImage, classifier, storage,1.1, 3, CV_HAAR_FIND_BIGGEST_OBJECT | CV_HAAR_DO_ROUGH_SEARCH);
-            int total = faces.total();
-            mContours.clear();
-            for (int i = 0; i < total; i++) {
-                mContours.add(new CvRect(cvGetSeqElem(faces, i)));
+                // The training set or the recognition engine may have been changed since last frame
+                if (reloadFaceModel) {
+                    reloadFaceModel = false;
+                    faceRecognizer.refresh();
+                }
+                faceRecognizer.setEngine(faceEngine);
+                faceDetector.setFindAll(multiFace);
+
+                // The backend may have been changed since last frame
+                if (faceDetector.getBackend() != faceBackend) {
+                    faceDetector.destroy();
+                    faceDetector = FaceDetector.create(faceBackend, pool);
+                    faceDetector.setFindAll(multiFace);
+                    step = -1;
+                }
+
+                // Search less scales while the vision is over its time budget
+                if (governor.faceStep() != step) {
+                    step = governor.faceStep();
+                    faceDetector.setSizeRange(governor.faceMinSize(faceBackend.windowSize()), 0);
+                    faceDetector.setScaleStep(governor.faceScaleStep());
+                }
+
+                long start = System.nanoTime();
+                IplImage image = ring.image(slot);
+                faceDetector.process(image);
+                DetectionBuffer faces = faceDetector.getFaces();
+                visionMetrics.record(VisionMetrics.STAGE_FACE, System.nanoTime() - start);
+
+                // Only the biggest face, unless all the faces are recognized
+                int count = multiFace ? faces.size() : Math.min(faces.size(), 1);
+
+                // Recognize the faces whose track identity is not known yet, all together
+                long sequence = ring.sequence(slot);
+                int batchCount = 0;
+                for (int i = 0; i < count; i++) {
+                    int x = faces.x(i), y = faces.y(i), w = faces.width(i), h = faces.height(i);
+                    tracks[i] = identities.associate(sequence, x, y, w, h);
+                    cvSetImageROI(image, faceRoi.x(x).y(y).width(w).height(h));
+                    if (identities.needsRecognition(tracks[i], sequence, image)) {
+                        batch[batchCount++] = i;
+                    } else {
+                        recognized[i] = identities.identity(tracks[i]);
+                    }
+                    cvResetImageROI(image);
+                }
+                if (batchCount > 0) {
+                    long recognizeStart = System.nanoTime();
+                    faceRecognizer.processAll(image, faces, batch, batchCount, recognized);
+                    visionMetrics.record(VisionMetrics.STAGE_RECOGNIZE, System.nanoTime() - recognizeStart);
+                    // The identities recognized by a previous model are not valid any more
+                    if (faceRecognizer.modelVersion() != modelVersion) {
+                        modelVersion = faceRecognizer.modelVersion();
+                        identities.clearIdentities();
+                    }
+                    for (int k = 0; k < batchCount; k++) {
+                        int i = batch[k];
+                        identities.store(tracks[i], sequence, recognized[i]);
+                        DroneApplication.pushDebugMessage("Face track #" + identities.id(tracks[i]) + ": " + recognized[i].text());
+                    }
+                }
+                governor.endFaceFrame(System.nanoTime() - start);
+
+                synchronized (result) {
+                    result.sequence = sequence;
+                    result.found = count > 0;
+                    result.faces.clear();
+                    for (int i = 0; i < count; i++) {
+                        result.faces.add(faces.x(i), faces.y(i), faces.width(i), faces.height(i), faces.score(i));
+                        result.recognized[i] = recognized[i];
+                    }
+                }
+                ring.release();
             }
-        }
-        List<CvRect> getContours() {
-            return mContours;
+
+            Log.i(TAG, "Face thread stopped, " + identities.report());
+            faceDetector.destroy();
+            faceRecognizer.destroy();
+            pool.shutdown();
         }
     }
 
@@ -496,14 +1074,24 @@ public class AutoPilotModule {
      * to influence the drone behavior by updating periodically its states or by giving it order directly
      *
      * @see ColorBlobDetector: The blob detection detect the closest blob of a touched point on screen
-     * @see FaceDetector: Once the blob is big enough, try to detect face
-     * @see AutoFaceRecognizer which from detected faces tries to recognize face using eigen faces
+     * @see TargetTracker: Predict the target between detections and smooth its position
+     * Each touch calibrates a new target (up to ColorBlobDetector.MAX_TARGETS, the oldest is replaced)
+     * with its own id and tracker. The last calibrated target is the followed one (by the face stage and
+     * the drone), a touch on another target selects it as followed.
+     * @see FaceThread: Once the blob is big enough, try to detect and recognize face asynchronously
+     * (i.e. the blob tracking and the corrections keep the frame rate while faces are searched)
      */
     private class OpenCVThread extends Thread implements View.OnTouchListener{
 
         private static final double AREA_THRESHOLD = 0.035;
         private static final int MAX_CLICK_DURATION = 200;
         private static final int RECOGNIZED_TIME = 1000;
+        private static final int FRAME_TIMEOUT = 100;
+        // A face found more than FACE_RESULT_MAX_AGE frames ago is not used for tracking any more
+        private static final int FACE_RESULT_MAX_AGE = 15;
+        private static final int BENCHMARK_FRAMES = 50;
+        // The target can be predicted during TRACKER_MAX_COAST frames without detection
+        private static final int TRACKER_MAX_COAST = 10;
         private long startClickTime;
         private long startRecognizedTime;
 
@@ -513,21 +1101,59 @@ public class AutoPilotModule {
         private ConsoleView mConsoleVView;
 
         private final Handler handler;
+        private final Runnable mUiUpdate;
         boolean interrupted;
         private final Object lock;
 
-        private IplImage grabbedImage;
+        // IplImage headers wrapping the native frame buffers of the video view (no copy)
+        private DecodedFrame[] wrappedFrames;
+        private IplImage[] lumaImages;
+        private IplImage[] uImages;
+        private IplImage[] vImages;
+        // Header on the Y plane of the current frame: the gray image given to the face stage
+        private IplImage lumaImage;
+        private int nextWrapped;
+        // Planes of the current frame read by the detectors
+        private FramePlanes mPlanes;
+        // Owner of the native memory of the pipeline (frame headers, calibration images, face stage)
+        private NativeArena mArena;
+        // Sequence number of the last processed frame and count of frames decoded but never processed
+        private long lastSequence;
+        private long droppedFrames;
 
         private ColorBlobDetector mBlobDetector;
-        private FaceDetector mFaceDetector;
-        private AutoFaceRecognizer mFaceRecognizer;
+        // Tracker and id of each target (-1 if the slot is free), index of the followed target (-1 if none)
+        private TargetTracker[] mTrackers;
+        private int[] mTargetIds;
+        private int nextTargetId;
+        private int mPrimary;
+        // Id and box (x1, y1, x2, y2) of the targets which are not followed, drawn on the view
+        private int[] mOtherTargets;
+        private int mOtherCount;
+        // Controller of the yaw and the camera tilt following the target, and whether it is running
+        private VisualServo mServo;
+        // States of the drone now and when the frame was received, to reproject the target
+        private final TelemetryRing.Sample mStateNow = new TelemetryRing.Sample();
+        private final TelemetryRing.Sample mStateAtFrame = new TelemetryRing.Sample();
+        private boolean mServoing;
+        // Quality of the detections adapted to the frame budget, and count of frames not given to the face thread
+        private FrameBudgetGovernor mGovernor;
+        private int skippedFaceFrames;
+        private FaceThread mFaceThread;
+        private FaceResult mFaceResult;
+        // Frame set of a requested face detector benchmark, null if none is running
+        private volatile FaceDetectorBenchmark mBenchmark;
+        private long lastFaceSequence;
         private int rows, cols;
         private int x1, y1, x2, y2;
 
-        private double mFrameArea, mDistance, blobArea;
-        private Point mFrameCenter, pivotCenter, blobCenter;
-        private boolean mIsBlobFound, mIsFaceFound, mSearchBlob, mSearchFace;
+        private double mFrameArea, blobArea;
+        private Point mFrameCenter, blobCenter;
+        private boolean mIsBlobFound, mIsFaceFound, mSearchFace;
         private boolean mIsReady;
+        // Point touched by the user, waiting to be calibrated on
+        private volatile boolean mCalibrate;
+        private volatile int mTouchX, mTouchY;
         private AutoFaceRecognizer.Recognized mRecognized;
 
 
@@ -551,6 +1177,46 @@ public class AutoPilotModule {
             lock = new Object();
 
             mOpenCVView.setOnTouchListener(this);
+
+            // Posted on each frame: created once
+            mUiUpdate = new Runnable() {
+                @Override
+                public void run() {
+
+                    // If I can paint assume I can write in the console
+                    mConsoleVView.invalidate();
+
+                    if(mRecognized != null){
+                        mOpenCVView.setColor(mRecognized.color());
+                        mOpenCVView.setText(mRecognized.text());
+                    }
+                    else{
+                        mOpenCVView.setText("");
+                        mOpenCVView.setColor(mIsBlobFound ? OpenCVView.BLOB_RECT_COLOR : OpenCVView.FACE_RECT_COLOR);
+                    }
+                    // The frame is stretched on the whole view
+                    float sx = (float) mOpenCVView.getWidth() / cols;
+                    float sy = (float) mOpenCVView.getHeight() / rows;
+                    mOpenCVView.setRect((int)(x1*sx), (int)(y1*sy), (int)(x2*sx), (int)(y2*sy));
+                    for(int i = 0; i < mOtherCount; i++){
+                        int o = 5 * i;
+                        mOpenCVView.setOtherRect(i, mOtherTargets[o], (int)(mOtherTargets[o+1]*sx), (int)(mOtherTargets[o+2]*sy),
+                                (int)(mOtherTargets[o+3]*sx), (int)(mOtherTargets[o+4]*sy));
+                    }
+                    mOpenCVView.setOtherRectCount(mOtherCount);
+                    mOpenCVView.invalidate();
+                }
+            };
+        }
+
+        /**
+         * Stop the yaw and the camera tilt rates of the servo, the axes of a mission are kept
+         */
+        private void stopServo() {
+            mServo.reset();
+            pilotingLoop.releaseServo();
+            droneSettings.servoTilt(0);
+            mServoing = false;
         }
 
         private void init(int height, int width){
@@ -558,38 +1224,150 @@ public class AutoPilotModule {
             rows = height;
             cols = width;
 
-            grabbedImage = IplImage.create(width, height, IPL_DEPTH_8U, 4);
+            wrappedFrames = new DecodedFrame[3];
+            lumaImages = new IplImage[3];
+            uImages = new IplImage[3];
+            vImages = new IplImage[3];
+            nextWrapped = 0;
+            mArena = new NativeArena();
+            mPlanes = new FramePlanes(width & ~3, height & ~3, mArena);
 
             mFrameArea = cols*rows;
             mFrameCenter = new Point(width/2, height/2);
-            mDistance = Math.min(width, height)/4;
-            pivotCenter = new Point(0, 0);
             blobCenter = new Point(0, 0);
             mIsBlobFound = false;
             mIsFaceFound = false;
-            mSearchBlob = true;
             mSearchFace = false;
 
-            mBlobDetector = new ColorBlobDetector(width, height);
-            mFaceDetector = new FaceDetector(width, height);
-            mFaceRecognizer = new AutoFaceRecognizer();
+            mBlobDetector = new ColorBlobDetector(width & ~3, height & ~3);
+            mGovernor = new FrameBudgetGovernor(frameBudgetMs);
+            mServo = new VisualServo();
+            mServoing = false;
+            mBlobDetector.setLevel(mGovernor.blobLevel());
+            mTrackers = new TargetTracker[ColorBlobDetector.MAX_TARGETS];
+            mTargetIds = new int[ColorBlobDetector.MAX_TARGETS];
+            for (int k = 0; k < ColorBlobDetector.MAX_TARGETS; k++) {
+                mTrackers[k] = new TargetTracker(TRACKER_MAX_COAST, mGovernor.detectionPeriod());
+                mTargetIds[k] = -1;
+            }
+            nextTargetId = 0;
+            mPrimary = -1;
+            mOtherTargets = new int[5 * ColorBlobDetector.MAX_TARGETS];
+            mOtherCount = 0;
+            mFaceResult = new FaceResult();
+            lastFaceSequence = -1;
+            skippedFaceFrames = 0;
+            mFaceThread = new FaceThread(width, height, mGovernor, mArena);
+            mFaceThread.start();
             mIsReady = true;
         }
 
 
+        /**
+         * Ask to benchmark the face detector backends on the next frames of the stream
+         */
+        void requestBenchmark() {
+            if(!mIsReady){
+                DroneApplication.pushErrorMessage("No frame to benchmark on");
+                return;
+            }
+            if(mBenchmark == null) {
+                DroneApplication.pushInfoMessage("Face detector benchmark: collecting frames");
+                mBenchmark = new FaceDetectorBenchmark(BENCHMARK_FRAMES, cols, rows);
+            }
+        }
+
+        private void startBenchmark(final FaceDetectorBenchmark benchmark) {
+            DroneApplication.pushInfoMessage("Face detector benchmark: running");
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    benchmark.run();
+                }
+            }, "FaceBenchmark").start();
+        }
+
         public void interrupt() {
             interrupted = true;
+            // Wake the thread up if it is waiting for a frame
+            super.interrupt();
+        }
+
+        /**
+         * Set the planes of the latest decoded YUV frame and point lumaImage on its Y plane.
+         * The native buffer of the frame is wrapped once in IplImage headers (i.e. no copy) which
+         * are then reused each time the video view gives back the same pooled frame.
+         * No conversion is done here: the detectors read the planes as they are.
+         * @param frame (DecodedFrame): frame given by the video view
+         * @return (boolean): true if the frame has been grabbed, false if its resolution changed
+         */
+        private boolean grabFrame(DecodedFrame frame){
+            if(frame.getWidth() != cols || frame.getHeight() != rows){
+                return false;
+            }
+
+            int wrapped = -1;
+            for(int i = 0; i < wrappedFrames.length; i++){
+                if(wrappedFrames[i] == frame){
+                    wrapped = i;
+                }
+            }
+            if(wrapped < 0){
+                wrapped = nextWrapped;
+                nextWrapped = (nextWrapped+1) % wrappedFrames.length;
+
+                // The headers of the frame wrapped before in this slot are not used any more
+                mArena.free(lumaImages[wrapped]);
+                mArena.free(uImages[wrapped]);
+                mArena.free(vImages[wrapped]);
+
+                BytePointer data = new BytePointer(frame.getData());
+                // The Y plane is at the beginning of the buffer, followed by the U and V planes
+                lumaImages[wrapped] = header(cols, rows, data);
+                uImages[wrapped] = header(cols/2, rows/2, new BytePointer(data).position(cols*rows));
+                vImages[wrapped] = header(cols/2, rows/2, new BytePointer(data).position(cols*rows + cols*rows/4));
+                wrappedFrames[wrapped] = frame;
+            }
+
+            lumaImage = lumaImages[wrapped];
+            mPlanes.setFrame(lumaImage, uImages[wrapped], vImages[wrapped]);
+            return true;
         }
 
         /**
-         * Compute square distance between two points
-         * This save a sqrt computation time
-         * @param a (Point): First point
-         * @param b (Point): Second point
-         * @return (double) the corresponding sqr distance
+         * Create a one channel image header of the arena on a native buffer (no copy)
+         * @param width (int): image width, also its row step
+         * @param height (int): image height
+         * @param data (BytePointer): the first pixel
+         * @return (IplImage): the header
          */
-        private double sqrDistance(Point a, Point b){
-            return (a.x()-b.x())*(a.x()-b.x()) + (a.y()-b.y())*(a.y()-b.y());
+        private IplImage header(int width, int height, BytePointer data){
+            IplImage header = mArena.track(NativeArena.STAGE_FRAME, IplImage.createHeader(width, height, IPL_DEPTH_8U, 1), 0);
+            cvSetData(header, data, width);
+            return header;
+        }
+
+        /**
+         * Find the blob whose center is the closest of a given point
+         * The square distance is compared, this save a sqrt computation time
+         * @param blobs (DetectionBuffer): the found blobs, not empty
+         * @param x (int): x of the point
+         * @param y (int): y of the point
+         * @return (int) the index of the closest blob
+         */
+        private int closestBlob(DetectionBuffer blobs, int x, int y){
+            int closest = 0;
+            long d = Long.MAX_VALUE;
+            for (int j = 0; j < blobs.size(); j++) {
+                long dx = blobs.centerX(j) - x;
+                long dy = blobs.centerY(j) - y;
+                long dd = dx*dx + dy*dy;
+                if (dd < d) {
+                    d = dd;
+                    closest = j;
+                }
+            }
+            return closest;
         }
 
 
@@ -613,21 +1391,21 @@ public class AutoPilotModule {
                     // Click event has occurred
                     if(clickDuration < MAX_CLICK_DURATION) {
 
-                        int xOffset = (view.getWidth() - cols) / 2;
-                        int yOffset = (view.getHeight() - rows) / 2;
-
-                        int x = (int)event.getX() - xOffset;
-                        int y = (int)event.getY() - yOffset;
+                        // The video is stretched on the whole view: convert in frame coordinates
+                        int x = (int)(event.getX() * cols / view.getWidth());
+                        int y = (int)(event.getY() * rows / view.getHeight());
 
                         // Stop here if the touch is outside the view
                         if ((x < 0) || (y < 0) || (x > cols) || (y > rows)) return false;
 
-                        calibrate(x, y);
+                        // The color is sampled by the vision thread on its next frame
+                        mTouchX = x;
+                        mTouchY = y;
+                        mCalibrate = true;
 
                         // Display some information after calibration
                         Log.i(TAG, "View: (" + view.getWidth() + ", " + view.getHeight() + ")");
                         Log.i(TAG, "CR: (" + cols + ", " + rows + ")");
-                        Log.i(TAG, "OFFSET: (" + xOffset + ", " + yOffset + ")");
                         Log.i(TAG, "Touch image coordinates: (" + x + ", " + y + ")");
                     }
                 }
@@ -635,6 +1413,13 @@ public class AutoPilotModule {
             return false; // don't need subsequent touch events
         }
 
+        /**
+         * Add a target of the color of the blob to track: the mean color around a point of the current
+         * frame. A touch on a target which is not followed selects it, a touch on the followed one
+         * calibrates it again. Called by the vision thread
+         * @param x (int): x of the point in the frame
+         * @param y (int): y of the point in the frame
+         */
         private void calibrate(int x, int y){
 
             // Check if ww can calibrate or not
@@ -643,132 +1428,292 @@ public class AutoPilotModule {
                 Log.e(TAG, "Nothing to calibrate on");
                 return;
             }
-            DroneApplication.pushInfoMessage("Calibrate");
-
-            // First create a square representing the touched region. This square is 8x8 pixel
-            int halfRegionSide = 4;
 
-            // Create the square or rectangle dimension in border cases
-            int recX = (x>halfRegionSide) ? x-halfRegionSide : 0;
-            int recY = (y>halfRegionSide) ? y-halfRegionSide : 0;
-            int recW = (x+halfRegionSide < cols) ? x + halfRegionSide - recX : cols - recX;
-            int recH = (y+halfRegionSide < rows) ? y + halfRegionSide - recY : rows - recY;
-            CvRect r = new CvRect(recX, recY, recW, recH);
-
-            // Croop the original image by Copy original image (only ROI) to the cropped image
-            cvSetImageROI(grabbedImage, r);
-            IplImage touchedRegionRgba = cvCreateImage(cvGetSize(grabbedImage), grabbedImage.depth(), grabbedImage.nChannels());
-            cvCopy(grabbedImage, touchedRegionRgba);
+            int target = targetAt(x, y);
+            if(target >= 0 && target != mPrimary){
+                follow(target);
+                return;
+            }
+            if(target < 0){
+                target = freeTarget();
+                mTargetIds[target] = nextTargetId++;
+            }
+            DroneApplication.pushInfoMessage("Calibrate target #" + mTargetIds[target]);
 
-            IplImage touchedRegionHsv = cvCreateImage(cvGetSize(touchedRegionRgba), touchedRegionRgba.depth(), touchedRegionRgba.nChannels()-1);
-            cvCvtColor(touchedRegionRgba, touchedRegionHsv, COLOR_RGB2HSV_FULL);
+            // First create a square representing the touched region, moved inside the frame in
+            // border cases (aligned on the 2x2 pixels of the chroma)
+            int halfRegionSide = FramePlanes.CALIBRATION_SIDE / 2;
+            int width = mPlanes.width();
+            int height = mPlanes.height();
+            int recX = Math.min(Math.max(x - halfRegionSide, 0), width - 2*halfRegionSide) & ~1;
+            int recY = Math.min(Math.max(y - halfRegionSide, 0), height - 2*halfRegionSide) & ~1;
 
-            cvResetImageROI(grabbedImage);
+            // Find the mean of each HSV channels in the touched region, converted as the detector does
+            CvScalar mean = mPlanes.meanHsv(recX, recY);
 
-            // Create an indexer on touchedRegionHsv to easily get the pixel values
-            UByteBufferIndexer idx = touchedRegionHsv.createIndexer();
+            double H = mean.val(0);
+            double S = mean.val(1);
+            double V = mean.val(2);
 
-            // Find the mean of each HSV channels in the touched region
-            double H = 0;
-            double S = 0;
-            double V = 0;
+            // Set the new value after calibration
+            mBlobDetector.setHsvColor(target, H, S, V);
+            mTrackers[target].reset(x, y);
+            blobCenter.x(x);
+            blobCenter.y(y);
+            mPrimary = target;
+            mSearchFace = false;
+        }
 
-            for(int i = 0; i < recW; i++){
-                for(int j = 0; j < recH; j++){
-                    H += idx.get(i, j, 0);
-                    S += idx.get(i, j, 1);
-                    V += idx.get(i, j, 2);
+        /**
+         * @return (int): the target whose estimated box contains a point, -1 if none
+         */
+        private int targetAt(int x, int y){
+            for(int k = 0; k < ColorBlobDetector.MAX_TARGETS; k++){
+                TargetTracker tracker = mTrackers[k];
+                if(mTargetIds[k] >= 0 && tracker.isTracking()
+                        && Math.abs(x - tracker.x()) <= tracker.width() / 2
+                        && Math.abs(y - tracker.y()) <= tracker.height() / 2){
+                    return k;
                 }
             }
+            return -1;
+        }
 
-            int pointCount = recW*recH;
-            H /= pointCount;
-            S /= pointCount;
-            V /= pointCount;
+        /**
+         * @return (int): a free target slot, or the slot of the oldest target if all are used
+         */
+        private int freeTarget(){
+            int oldest = 0;
+            for(int k = 0; k < ColorBlobDetector.MAX_TARGETS; k++){
+                if(mTargetIds[k] < 0){
+                    return k;
+                }
+                if(mTargetIds[k] < mTargetIds[oldest]){
+                    oldest = k;
+                }
+            }
+            return oldest;
+        }
 
-            // Set the new value after calibration
-            mBlobDetector.setHsvColor(H, S, V);
-            blobCenter.x(x);
-            blobCenter.y(y);
-            mSearchBlob = true;
+        /**
+         * Follow a target with the face stage and the drone
+         * @param target (int): the target, -1 for none
+         */
+        private void follow(int target){
+            mPrimary = target;
             mSearchFace = false;
+            mIsFaceFound = false;
+            mRecognized = null;
+            if(target >= 0){
+                DroneApplication.pushInfoMessage("Follow target #" + mTargetIds[target]);
+            }
+        }
+
+        /**
+         * Forget a target neither detected nor predicted any more. If it was followed, follow the
+         * most recent target left
+         * @param target (int): the lost target
+         */
+        private void removeTarget(int target){
+            DroneApplication.pushInfoMessage("Target #" + mTargetIds[target] + " lost");
+            mTargetIds[target] = -1;
+            mBlobDetector.removeTarget(target);
+            if(target == mPrimary){
+                int latest = -1;
+                for(int k = 0; k < ColorBlobDetector.MAX_TARGETS; k++){
+                    if(mTargetIds[k] >= 0 && (latest < 0 || mTargetIds[k] > mTargetIds[latest])){
+                        latest = k;
+                    }
+                }
+                follow(latest);
+            }
         }
 
         @Override
         public void run() {
 
-            // Sleep until first bitmap image available :
-            // TODO find a better way to not have to wait
-            while(mVideoView.getBitmap() == null){
+            // Wait until first decoded frame available
+            DecodedFrame frame = null;
+            while(frame == null && !interrupted){
                 try {
-                    sleep(50);
+                    frame = mVideoView.awaitLatestFrame(FRAME_TIMEOUT);
                 } catch (InterruptedException e) {
-                    DroneApplication.pushErrorMessage("ERROR while sleeping");
-                    Log.e(TAG, "ERROR while sleeping");
+                    interrupted = true;
                 }
             }
+            if(frame == null){
+                return;
+            }
 
             // Init final parameters for the thread from the image dimension
-            init(mVideoView.getBitmap().getHeight(), mVideoView.getBitmap().getWidth());
+            init(frame.getHeight(), frame.getWidth());
+            lastSequence = frame.getSequence() - 1;
+            droppedFrames = 0;
+            visionMetrics.reset();
+            visionMetrics.startDump(new File(DroneApplication.getApplication().getContext().getFilesDir(), METRICS_FILE));
 
-            CvMemStorage storage = CvMemStorage.create();
-            List<CvRect> contours;
+            DetectionBuffer blobs;
 
             while (!interrupted) {
-                cvClearMemStorage(storage);
-                final Bitmap source = mVideoView.getBitmap();
 
-                if (source != null) {
-                    // Get the input frame
-                    source.copyPixelsToBuffer(grabbedImage.createBuffer());
+                // Sleep until the decoder gives a new frame
+                try {
+                    frame = mVideoView.awaitLatestFrame(FRAME_TIMEOUT);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    frame = null;
+                }
+                if (frame == null) {
+                    // No frame: the decoder stalled or the stream dropped. The tilt rate of the
+                    // gimbal does not expire, it must not keep the last rate until the next frame
+                    if (mServoing) {
+                        stopServo();
+                    }
+                    continue;
+                }
+                long frameStart = System.nanoTime();
+                visionMetrics.record(VisionMetrics.STAGE_AGE, frameStart - frame.getReceivedNs());
+                visionMetrics.dropFrames(frame.getSequence() - lastSequence - 1);
+                droppedFrames += frame.getSequence() - lastSequence - 1;
+                lastSequence = frame.getSequence();
+
+                // Apply the quality fitting the frame budget
+                mGovernor.setBudget(frameBudgetMs);
+                mBlobDetector.setLevel(mGovernor.blobLevel());
+                for (TargetTracker tracker : mTrackers) {
+                    tracker.setDetectionPeriod(mGovernor.detectionPeriod());
+                }
+
+                // Whether the servo controls the drone on this frame
+                boolean servoing = false;
+
+                // Get the input frame
+                boolean grabbed = grabFrame(frame);
+                visionMetrics.record(VisionMetrics.STAGE_GRAB, System.nanoTime() - frameStart);
+                if (grabbed) {
+
+                    // Calibrate on a touched point
+                    if (mCalibrate) {
+                        mCalibrate = false;
+                        calibrate(mTouchX, mTouchY);
+                    }
+
+                    // Collect the frames of a requested benchmark and run it in its own thread once done
+                    FaceDetectorBenchmark benchmark = mBenchmark;
+                    if (benchmark != null && benchmark.addFrame(lumaImage)) {
+                        mBenchmark = null;
+                        startBenchmark(benchmark);
+                    }
 
                     // If a color is selected (i.e. the user has click on the screen once)
                     // Then:
-                    // - Process the mRgba image to find blobs contours
-                    // - Get the contours and find the contours which is the closest of previous found center.
-                    // - Compute the approximate area and centroid of this new contour
-                    // - Draw them on the frame, and return the frame
-                    if (mSearchBlob || mSearchFace) {
-
-                        if(mSearchFace){
-                            mFaceDetector.process(grabbedImage);
-                            contours = mFaceDetector.getContours();
-                            mIsFaceFound = contours.size() > 0;
-                            mIsBlobFound = false;
+                    // - Predict where each target is on this frame
+                    // - Process the frame to find the blobs of all the targets in a single sweep (a
+                    //   target is skipped on some frames while its track is steady, the prediction is then used)
+                    // - For each target, find the blob which is the closest of its predicted center.
+                    // - If the followed blob is big enough, give the frame to the face thread and use its
+                    //   latest face (if recent enough) instead of the blob
+                    // - Correct the predictions with the face or the blobs and use the estimates as targets
+                    if (mPrimary >= 0) {
+
+                        // Fast stage: the blobs are tracked on each frame, or once every detection period
+                        // (see FrameBudgetGovernor) while the track is steady
+                        int detect = 0;
+                        for (int k = 0; k < ColorBlobDetector.MAX_TARGETS; k++) {
+                            if (mTargetIds[k] >= 0) {
+                                mTrackers[k].predict(lastSequence);
+                                if (!mTrackers[k].isSteady()) {
+                                    detect |= 1 << k;
+                                }
+                            }
                         }
-                        else{
-                            mBlobDetector.process(grabbedImage);
-                            contours = mBlobDetector.getContours();
-                            mIsFaceFound = false;
-                            mIsBlobFound = contours.size() > 0;
+                        blobCenter.x(mTrackers[mPrimary].x());
+                        blobCenter.y(mTrackers[mPrimary].y());
+                        if(detect != 0) {
+                            long start = System.nanoTime();
+                            mBlobDetector.process(mPlanes, detect);
+                            long blobNs = System.nanoTime() - start;
+                            mGovernor.report(FrameBudgetGovernor.STAGE_BLOB, blobNs);
+                            visionMetrics.record(VisionMetrics.STAGE_BLOB, blobNs);
                         }
 
-                        // If neither blob nor face is found, ask the user to input another blob
-                        if(!(mIsBlobFound || mIsFaceFound)) {
-                            mSearchBlob = false;
-                            mSearchFace = false;
+                        // Slow stage: one frame every face period is offered to the face thread,
+                        // the frame is dropped if the face thread is still busy
+                        long handoffStart = System.nanoTime();
+                        if(mSearchFace && ++skippedFaceFrames >= mGovernor.facePeriod()){
+                            skippedFaceFrames = 0;
+                            if(!mFaceThread.submit(lumaImage, lastSequence)) {
+                                visionMetrics.dropFaceFrame();
+                            }
                         }
-                        else{
-                            double d = Double.POSITIVE_INFINITY;
-                            int x = 0, y = 0, w = 0, h = 0;
-
-                            // For each found contour, compute the centroid and keep the closest from previous
-                            // frame contour
-                            for (int j = 0; j < contours.size(); j++) {
-
-                                CvRect rect = contours.get(j);
-                                pivotCenter.x(rect.x() + rect.width() / 2);
-                                pivotCenter.y(rect.y() + rect.height() / 2);
-
-                                double dd = sqrDistance(pivotCenter, blobCenter);
-                                if (dd < d) {
-                                    d = dd;
-                                    x = pivotCenter.x();
-                                    y = pivotCenter.y();
-                                    w = rect.width();
-                                    h = rect.height();
+                        mFaceThread.readResult(mFaceResult);
+                        mGovernor.report(FrameBudgetGovernor.STAGE_HANDOFF, System.nanoTime() - handoffStart);
+                        mIsFaceFound = mSearchFace && mFaceResult.found
+                                && lastSequence - mFaceResult.sequence <= FACE_RESULT_MAX_AGE;
+                        mIsBlobFound = !mIsFaceFound && (detect & 1 << mPrimary) != 0
+                                && mBlobDetector.getBlobs(mPrimary).size() > 0;
+
+                        if(mIsFaceFound) {
+                            // Each face result is only taken into account once
+                            if(mFaceResult.sequence != lastFaceSequence) {
+                                lastFaceSequence = mFaceResult.sequence;
+                                // Follow the face closest to the target among the faces of the frame
+                                DetectionBuffer faces = mFaceResult.faces;
+                                int face = closestBlob(faces, mTrackers[mPrimary].x(), mTrackers[mPrimary].y());
+                                mTrackers[mPrimary].correct(faces.centerX(face), faces.centerY(face),
+                                        faces.width(face), faces.height(face));
+
+                                AutoFaceRecognizer.Recognized tempRec = mFaceResult.recognized[face];
+
+                                if (!tempRec.equals(mRecognized)) {
+                                    startRecognizedTime = System.currentTimeMillis();
+                                    mRecognized = tempRec;
+                                } else if (System.currentTimeMillis() - startRecognizedTime > RECOGNIZED_TIME) {
+                                    // The face is recognized and of the same type for a RECOGNIZED_TIME, we can send the mission
+                                    if (isEngaged && !isInFlightPlan && !isInMission) {
+                                        DroneApplication.pushInfoMessage("Start Mission");
+                                        isInMission = true;
+                                        droneSettings.startMission(mRecognized);
+                                    }
                                 }
                             }
+                        }
+                        else {
+                            mRecognized = null;
+                        }
+
+                        // Correct each target with its closest blob (the followed one with its face if found)
+                        // If a target is neither detected nor predicted any more, forget it (the blob may only
+                        // be out of its search window, wait for the full frame scan)
+                        for (int k = 0; k < ColorBlobDetector.MAX_TARGETS; k++) {
+                            if (mTargetIds[k] < 0) {
+                                continue;
+                            }
+                            TargetTracker tracker = mTrackers[k];
+                            blobs = mBlobDetector.getBlobs(k);
+                            if ((detect & 1 << k) != 0 && !(k == mPrimary && mIsFaceFound) && blobs.size() > 0) {
+                                int closest = closestBlob(blobs, tracker.x(), tracker.y());
+                                int w = blobs.width(closest);
+                                int h = blobs.height(closest);
+                                tracker.correct(blobs.centerX(closest), blobs.centerY(closest), w, h);
+                                // Center the search window where the blob is expected on the next frame
+                                mBlobDetector.track(k, tracker.nextX(), tracker.nextY(), w, h);
+                            }
+                            if (!tracker.isTracking() && mBlobDetector.isLost(k)) {
+                                removeTarget(k);
+                            }
+                        }
+
+                        // If no target is left, ask the user to input another blob
+                        mOtherCount = 0;
+                        if(mPrimary < 0) {
+                            mSearchFace = false;
+                        }
+                        else{
+                            int x = mTrackers[mPrimary].x();
+                            int y = mTrackers[mPrimary].y();
+                            int w = mTrackers[mPrimary].width();
+                            int h = mTrackers[mPrimary].height();
 
                             blobCenter.x(x);
                             blobCenter.y(y);
@@ -781,36 +1726,23 @@ public class AutoPilotModule {
 
                             mSearchFace = mIsFaceFound || blobArea / mFrameArea > AREA_THRESHOLD;
 
-                            if(mSearchFace && mIsFaceFound) {// TODO check the && part but I assume it
-                                // Crop the image to keep the face only
-                                cvSetImageROI(grabbedImage, new CvRect(x1, y1, w, h));
-                                IplImage subIpl = cvCreateImage(cvGetSize(grabbedImage), grabbedImage.depth(), grabbedImage.nChannels());
-                                cvCopy(grabbedImage, subIpl);
-                                cvResetImageROI(grabbedImage);
-
-                                AutoFaceRecognizer.Recognized tempRec = mFaceRecognizer.process(subIpl, w, h);
-
-                                if (!tempRec.equals(mRecognized)) {
-                                    startRecognizedTime = Calendar.getInstance().getTimeInMillis();
-                                    mRecognized = tempRec;
-                                } else if (Calendar.getInstance().getTimeInMillis() - startRecognizedTime > RECOGNIZED_TIME){
-                                    // The face is recognized and of the same type for a RECOGNIZED_TIME, we can send the mission
-                                    if(isEngaged && !isInFlightPlan && !isInMission) {
-                                        DroneApplication.pushInfoMessage("Start Mission");
-                                        isInMission = true;
-                                        droneSettings.startMission(mRecognized);
-                                    }
+                            for (int k = 0; k < ColorBlobDetector.MAX_TARGETS; k++) {
+                                if (mTargetIds[k] >= 0 && k != mPrimary && mTrackers[k].isTracking()) {
+                                    TargetTracker tracker = mTrackers[k];
+                                    int o = 5 * mOtherCount++;
+                                    mOtherTargets[o] = mTargetIds[k];
+                                    mOtherTargets[o + 1] = tracker.x() - tracker.width() / 2;
+                                    mOtherTargets[o + 2] = tracker.y() - tracker.height() / 2;
+                                    mOtherTargets[o + 3] = tracker.x() + tracker.width() / 2;
+                                    mOtherTargets[o + 4] = tracker.y() + tracker.height() / 2;
                                 }
-                            }else{
-                                mRecognized = null;
                             }
                         }
 
                         // If the drone is in flight plan or inMission -> do nothing for not altering the plan or the mission !
                         // Once the mission ended, start tracking.
                         if(isEngaged && !isInFlightPlan && !isInMission) {
-                            double deltaX = mFrameCenter.x() - blobCenter.x();
-                            double deltaY = mFrameCenter.y() - blobCenter.y();
+                            long controlStart = System.nanoTime();
 
                             // apply correction
                             if (!mSearchFace) {
@@ -818,63 +1750,70 @@ public class AutoPilotModule {
                                 DroneApplication.pushInfoMessage("Become closer for better face detection: Press the button on screen");
                             }
 
-                            if (Math.abs(deltaX) > mDistance) {
-
-                                if (deltaX > 0) {
-                                    Log.i(TAG, "Correct x right");
-                                    droneSettings.turnSmallLeft();
-                                } else {
-                                    Log.i(TAG, "Correct x left");
-                                    droneSettings.turnSmallRight();
-                                }
-                            } else {
-                                droneSettings.fixYaw();
-                            }
-                            if (Math.abs(deltaY) > mDistance/2) {
-                                if (deltaY > 0) {
-                                    Log.i(TAG, "Correct y DOWN");
-                                    droneSettings.moveCameraTiltBy(5);
-                                } else {
-                                    Log.i(TAG, "Correct y UP");
-                                    droneSettings.moveCameraTiltBy(-5);
-                                }
-                            }
+                            // Continuous yaw and tilt rates from the angular error of the target, the yaw
+                            // is sent at a fixed rate by the piloting loop
+                            mServo.setFov(droneSettings.getFov());
+                            mServo.setMaxRotationSpeed(droneSettings.getMaxRotationSpeed());
+                            mServo.update(controlStart, blobCenter.x() - mFrameCenter.x(), blobCenter.y() - mFrameCenter.y(), cols,
+                                    yawSince(frame.getReceivedNs()), gimbalHistory.tiltSince(frame.getReceivedNs()));
+                            pilotingLoop.setServoYaw(mServo.yaw());
+                            droneSettings.servoTilt(mServo.tiltRate());
+                            servoing = true;
+                            visionMetrics.record(VisionMetrics.STAGE_CONTROL, System.nanoTime() - controlStart);
                         }
                     }
                 }
-                synchronized (lock) {
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-
-                            // If I can paint assume I can write in the console
-                            mConsoleVView.invalidate();
 
-                            if(mRecognized != null){
-                                mOpenCVView.setColor(mRecognized.color());
-                                mOpenCVView.setText(mRecognized.text());
-                            }
-                            else{
-                                mOpenCVView.setText("");
-                                mOpenCVView.setColor(mIsBlobFound ? OpenCVView.BLOB_RECT_COLOR : OpenCVView.FACE_RECT_COLOR);
-                            }
-                            mOpenCVView.setRect(x1, y1, x2, y2);
-                            mOpenCVView.invalidate();
-                        }
-                    });
+                // Stop the rotations of the servo once it does not control the drone any more, the
+                // axes of a mission started on this frame are kept
+                if (!servoing && mServoing) {
+                    stopServo();
                 }
-
-                try {
-                    sleep(10);
-                } catch (InterruptedException e) {
+                mServoing = servoing;
+                long uiStart = System.nanoTime();
+                synchronized (lock) {
+                    runOnUiThread(mUiUpdate);
+                }
+                long frameEnd = System.nanoTime();
+                visionMetrics.record(VisionMetrics.STAGE_UI, frameEnd - uiStart);
+                visionMetrics.frame(frameEnd);
+                mGovernor.endFrame(frameEnd - frameStart);
+
+                // Stop the vision rather than let a leak exhaust the memory during the flight. The
+                // servo is released below, the piloting loop keeps the mission axes
+                if (mArena.sample()) {
+                    DroneApplication.pushErrorMessage("Vision stopped, native memory leak: " + mArena.report());
                     interrupted = true;
                 }
+            }
+            Log.i(TAG, "Vision stopped, frames dropped: " + droppedFrames);
+            if (mServoing) {
+                stopServo();
+            }
 
+            mFaceThread.interrupt();
+            try {
+                mFaceThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
             }
+            Log.i(TAG, "Native memory: " + mArena.report());
+            mArena.release();
+            visionMetrics.stopDump();
+        }
 
-            mBlobDetector.destroy();
-            mFaceDetector.destroy();
-            cvReleaseImage(grabbedImage);
+        /**
+         * @param ns (long): System.nanoTime() of a past event, e.g. the reception of a frame
+         * @return (float): the angle the drone turned clockwise since then [deg], 0 if unknown
+         */
+        private float yawSince(long ns) {
+            if (!telemetry.latest(mStateNow) || !telemetry.at(ns, mStateAtFrame)) {
+                return 0;
+            }
+            double turn = mStateNow.yaw - mStateAtFrame.yaw;
+            // The shortest way, through -pi/pi if needed
+            turn -= 2 * Math.PI * Math.round(turn / (2 * Math.PI));
+            return (float) Math.toDegrees(turn);
         }
 
         private void runOnUiThread(Runnable r) {
@@ -0,0 +1,246 @@
+package ch.epfl.droneproject.module;
+
+import java.nio.ByteBuffer;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * ColorThreshold.java
+ * @author blchatel
+ *
+ * Fused color segmentation of the decoded frame: down-sample, classify and dilate in a single sweep.
+ * The frame is never converted in RGB nor HSV: a lookup table gives for each (quantized) YCrCb color
+ * whether it is in the HSV range, hence each pixel costs a few additions and one table read.
+ * Up to MAX_COLORS ranges are classified in the same sweep: the table and the mask give one bit per
+ * color. The bit of a color is rebuilt only when its range changes (i.e. on calibration, see setRange).
+ * The pixels of a level are the mean of the frame pixels they cover (box filter), the mask is
+ * dilated with a 3x3 square on the fly. The source rows are read with bulk copies, the sweep is
+ * bound by the memory bandwidth and not by the number of passes.
+ * The sweep reads the full resolution planes of the frame: a level computed apart would cost a pass
+ * more. The colors are converted as the calibration of FramePlanes does, hence a calibrated color is
+ * classified the same way.
+ * Not thread safe: used by the vision thread only.
+ * @see FramePlanes
+ */
+class ColorThreshold {
+
+    static final int MAX_COLORS = 8;
+    // Highest level of the mask, i.e. the frame is down-sampled up to 4 times
+    static final int MAX_LEVEL = 2;
+
+    // Bits kept of each channel in the table index
+    private static final int BITS = 6;
+    private static final int SHIFT = 8 - BITS;
+    private static final int LEVELS = 1 << BITS;
+    // ByteBuffers wrapping the frame planes (no copy), created once per plane header
+    private static final int WRAPPED_PLANES = 9;
+
+    // Bit k set if the color (y, cr, cb) is in the range k, indexed by y << 2*BITS | cr << BITS | cb
+    private final byte[] table;
+
+    // Copies of the source rows of the output row being computed
+    private final byte[] yRows, uRows, vRows;
+    // Classification of the output row, and the last three rows dilated horizontally
+    private final byte[] classes;
+    private final byte[][] dilatedRows;
+
+    private final IplImage[] wrappedPlanes;
+    private final ByteBuffer[] wrappedBuffers;
+    private int nextWrapped;
+
+    /**
+     * Default constructor. Allocate the table and the row buffers
+     * @param width (int): frame width
+     */
+    ColorThreshold(int width) {
+        table = new byte[LEVELS * LEVELS * LEVELS];
+        yRows = new byte[(1 << MAX_LEVEL) * width];
+        uRows = new byte[(1 << MAX_LEVEL - 1) * width / 2];
+        vRows = new byte[(1 << MAX_LEVEL - 1) * width / 2];
+        classes = new byte[width / 2];
+        dilatedRows = new byte[3][width / 2];
+        wrappedPlanes = new IplImage[WRAPPED_PLANES];
+        wrappedBuffers = new ByteBuffer[WRAPPED_PLANES];
+        nextWrapped = 0;
+    }
+
+    /**
+     * Rebuild the bit of a color in the table for a range of HSV (full range hue) colors, bounds included
+     * @param color (int): index of the color, lower than MAX_COLORS
+     * @param hMin (double): lower bound of the hue
+     * @param hMax (double): upper bound of the hue
+     * @param sMin (double): lower bound of the saturation
+     * @param sMax (double): upper bound of the saturation
+     * @param vMin (double): lower bound of the value
+     * @param vMax (double): upper bound of the value
+     */
+    void setRange(int color, double hMin, double hMax, double sMin, double sMax, double vMin, double vMax) {
+        int bit = 1 << color;
+        int index = 0;
+        for (int y = 0; y < LEVELS; y++) {
+            for (int cr = 0; cr < LEVELS; cr++) {
+                for (int cb = 0; cb < LEVELS; cb++) {
+                    // Center of the quantization cell
+                    double yc = (y << SHIFT) + (1 << SHIFT) / 2;
+                    double crc = (cr << SHIFT) + (1 << SHIFT) / 2 - 128;
+                    double cbc = (cb << SHIFT) + (1 << SHIFT) / 2 - 128;
+
+                    // YCrCb to RGB as COLOR_YCrCb2RGB
+                    double r = clamp(yc + 1.403 * crc);
+                    double g = clamp(yc - 0.714 * crc - 0.344 * cbc);
+                    double b = clamp(yc + 1.773 * cbc);
+
+                    // RGB to HSV as COLOR_RGB2HSV_FULL
+                    double max = Math.max(r, Math.max(g, b));
+                    double min = Math.min(r, Math.min(g, b));
+                    double diff = max - min;
+                    double s = max > 0 ? 255 * diff / max : 0;
+                    double h = 0;
+                    if (diff > 0) {
+                        if (max == r) {
+                            h = 60 * (g - b) / diff;
+                        } else if (max == g) {
+                            h = 120 + 60 * (b - r) / diff;
+                        } else {
+                            h = 240 + 60 * (r - g) / diff;
+                        }
+                        if (h < 0) {
+                            h += 360;
+                        }
+                    }
+                    h = Math.round(h * 256 / 360) & 255;
+                    s = Math.round(s);
+                    double v = Math.round(max);
+
+                    boolean in = h >= hMin && h <= hMax && s >= sMin && s <= sMax && v >= vMin && v <= vMax;
+                    table[index] = (byte) (in ? table[index] | bit : table[index] & ~bit);
+                    index++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a color from the table: none of its pixels is set in the mask any more
+     * @param color (int): index of the color, lower than MAX_COLORS
+     */
+    void clearRange(int color) {
+        int mask = ~(1 << color);
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (byte) (table[i] & mask);
+        }
+    }
+
+    private static double clamp(double c) {
+        return Math.round(Math.min(Math.max(c, 0), 255));
+    }
+
+    /**
+     * Compute the dilated mask of a region of the frame at a level
+     * @param luma (IplImage): Y plane of the frame (level 0)
+     * @param u (IplImage): U plane of the frame (level 1)
+     * @param v (IplImage): V plane of the frame (level 1)
+     * @param level (int): 1 or 2, level of the mask
+     * @param x (int): region x in full resolution
+     * @param y (int): region y in full resolution
+     * @param w (int): region width in full resolution
+     * @param h (int): region height in full resolution
+     * @param mask (byte[]): output, (w >> level) x (h >> level) pixels row by row, bit k set for the color k
+     */
+    void apply(IplImage luma, IplImage u, IplImage v, int level, int x, int y, int w, int h, byte[] mask) {
+        ByteBuffer yBuffer = wrap(luma);
+        ByteBuffer uBuffer = wrap(u);
+        ByteBuffer vBuffer = wrap(v);
+        int lumaStep = luma.widthStep();
+        int chromaStep = u.widthStep();
+
+        // Side of the block of frame pixels covered by a pixel of the level
+        int side = 1 << level;
+        int chromaSide = side >> 1;
+        int lumaShift = 2 * level + SHIFT;
+        int chromaShift = 2 * (level - 1) + SHIFT;
+        int cw = w >> 1;
+        int rw = w >> level;
+        int rh = h >> level;
+
+        for (int j = 0; j < rh; j++) {
+
+            // Bulk copy of the rows covered by the output row
+            for (int r = 0; r < side; r++) {
+                yBuffer.position((y + j * side + r) * lumaStep + x);
+                yBuffer.get(yRows, r * w, w);
+            }
+            for (int r = 0; r < chromaSide; r++) {
+                int offset = ((y >> 1) + j * chromaSide + r) * chromaStep + (x >> 1);
+                uBuffer.position(offset);
+                uBuffer.get(uRows, r * cw, cw);
+                vBuffer.position(offset);
+                vBuffer.get(vRows, r * cw, cw);
+            }
+
+            // Mean of each block and classification
+            for (int i = 0; i < rw; i++) {
+                int sy = 0;
+                for (int r = 0; r < side; r++) {
+                    int p = r * w + i * side;
+                    for (int c = 0; c < side; c++) {
+                        sy += yRows[p + c] & 0xFF;
+                    }
+                }
+                int su = 0, sv = 0;
+                for (int r = 0; r < chromaSide; r++) {
+                    int p = r * cw + i * chromaSide;
+                    for (int c = 0; c < chromaSide; c++) {
+                        su += uRows[p + c] & 0xFF;
+                        sv += vRows[p + c] & 0xFF;
+                    }
+                }
+                classes[i] = table[(sy >> lumaShift) << 2 * BITS | (sv >> chromaShift) << BITS | (su >> chromaShift)];
+            }
+
+            // Horizontal dilation, the vertical one needs the next row
+            byte[] dilated = dilatedRows[j % 3];
+            for (int i = 0; i < rw; i++) {
+                int m = classes[i];
+                if (i > 0) m |= classes[i - 1];
+                if (i < rw - 1) m |= classes[i + 1];
+                dilated[i] = (byte) m;
+            }
+            if (j > 0) {
+                dilateVertically(j - 1, rw, rh, mask);
+            }
+        }
+        if (rh > 0) {
+            dilateVertically(rh - 1, rw, rh, mask);
+        }
+    }
+
+    /**
+     * Write a row of the mask: the union of the horizontally dilated rows j-1, j and j+1
+     */
+    private void dilateVertically(int j, int rw, int rh, byte[] mask) {
+        byte[] row = dilatedRows[j % 3];
+        byte[] above = j > 0 ? dilatedRows[(j + 2) % 3] : null;
+        byte[] below = j < rh - 1 ? dilatedRows[(j + 1) % 3] : null;
+        int p = j * rw;
+        for (int i = 0; i < rw; i++) {
+            int m = row[i];
+            if (above != null) m |= above[i];
+            if (below != null) m |= below[i];
+            mask[p + i] = (byte) m;
+        }
+    }
+
+    private ByteBuffer wrap(IplImage plane) {
+        for (int i = 0; i < WRAPPED_PLANES; i++) {
+            if (wrappedPlanes[i] == plane) {
+                return wrappedBuffers[i];
+            }
+        }
+        ByteBuffer buffer = plane.getByteBuffer();
+        wrappedPlanes[nextWrapped] = plane;
+        wrappedBuffers[nextWrapped] = buffer;
+        nextWrapped = (nextWrapped + 1) % WRAPPED_PLANES;
+        return buffer;
+    }
+}
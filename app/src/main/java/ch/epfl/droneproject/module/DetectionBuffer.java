@@ -0,0 +1,117 @@
+package ch.epfl.droneproject.module;
+
+/**
+ * DetectionBuffer.java
+ * @author blchatel
+ *
+ * Fixed capacity list of detections (bounding rectangle and score) stored in primitive arrays.
+ * A detector clears and refills the same buffer on each frame, hence no object is allocated once
+ * the buffer is created. Detections beyond the capacity are ignored.
+ * @see AutoPilotModule
+ */
+class DetectionBuffer {
+
+    private final int[] x, y, width, height;
+    private final double[] score;
+    private int count;
+
+    /**
+     * Default constructor
+     * @param capacity (int): maximum number of detections kept per frame
+     */
+    DetectionBuffer(int capacity) {
+        x = new int[capacity];
+        y = new int[capacity];
+        width = new int[capacity];
+        height = new int[capacity];
+        score = new double[capacity];
+        count = 0;
+    }
+
+    void clear() {
+        count = 0;
+    }
+
+    /**
+     * Append a detection
+     * @param x (int): top left x of the bounding rectangle
+     * @param y (int): top left y of the bounding rectangle
+     * @param width (int): width of the bounding rectangle
+     * @param height (int): height of the bounding rectangle
+     * @param score (double): detector dependent score (e.g. area of a blob, neighbors of a face)
+     * @return (boolean): false if the buffer is full and the detection ignored
+     */
+    boolean add(int x, int y, int width, int height, double score) {
+        if (count == this.x.length) {
+            return false;
+        }
+        this.x[count] = x;
+        this.y[count] = y;
+        this.width[count] = width;
+        this.height[count] = height;
+        this.score[count] = score;
+        count++;
+        return true;
+    }
+
+    /**
+     * Exchange two detections
+     * @param i (int): index of the first detection
+     * @param j (int): index of the second detection
+     */
+    void swap(int i, int j) {
+        if (i == j) {
+            return;
+        }
+        int t;
+        t = x[i]; x[i] = x[j]; x[j] = t;
+        t = y[i]; y[i] = y[j]; y[j] = t;
+        t = width[i]; width[i] = width[j]; width[j] = t;
+        t = height[i]; height[i] = height[j]; height[j] = t;
+        double s = score[i]; score[i] = score[j]; score[j] = s;
+    }
+
+    int size() {
+        return count;
+    }
+
+    int capacity() {
+        return x.length;
+    }
+
+    int x(int i) {
+        return x[i];
+    }
+
+    int y(int i) {
+        return y[i];
+    }
+
+    int width(int i) {
+        return width[i];
+    }
+
+    int height(int i) {
+        return height[i];
+    }
+
+    double score(int i) {
+        return score[i];
+    }
+
+    /**
+     * @param i (int): index of the detection
+     * @return (int): x of the bounding rectangle center
+     */
+    int centerX(int i) {
+        return x[i] + width[i] / 2;
+    }
+
+    /**
+     * @param i (int): index of the detection
+     * @return (int): y of the bounding rectangle center
+     */
+    int centerY(int i) {
+        return y[i] + height[i] / 2;
+    }
+}
@@ -46,6 +46,8 @@ import static com.parrot.arsdk.arcommands.ARCOMMANDS_ARDRONE3_PILOTINGSTATE_FLYI
 public class DroneStatesSettingsProceduresModule implements ARDeviceControllerListener{
 
     private SkyControllerExtensionModule mSKEModule;
+    // Aggregator of the piloting commands, the axes of the procedures are sent in its PCMD
+    private PilotingLoop mPilotingLoop;
     private AutoPilotModule mAutopilot;
     private final Handler mHandler;
 
@@ -54,6 +56,8 @@ public class DroneStatesSettingsProceduresModule implements ARDeviceControllerLi
     private float tilt, pan;
     private float roll, pitch, yaw, gaz;
     private double lat, lon, alt;
+    // Last tilt rate sent by servoTilt, it is only sent again once it changes
+    private float servoTiltRate;
 
     // Current mission and states flag
     private Mission currentMission;
@@ -61,10 +65,12 @@ public class DroneStatesSettingsProceduresModule implements ARDeviceControllerLi
     /**
      * Default constructor for DroneStatesSettingsProceduresModule
      * @param skeModule (SkyControllerExtensionModule): extension controller module
+     * @param pilotingLoop (PilotingLoop): the aggregator sending the piloting commands
      * @param autopilot (AutoPilotModule): Linked autopilot
      */
-    DroneStatesSettingsProceduresModule(SkyControllerExtensionModule skeModule, AutoPilotModule autopilot){
+    DroneStatesSettingsProceduresModule(SkyControllerExtensionModule skeModule, PilotingLoop pilotingLoop, AutoPilotModule autopilot){
         this.mSKEModule = skeModule;
+        this.mPilotingLoop = pilotingLoop;
         this.mAutopilot = autopilot;
         mHandler = new Handler(DroneApplication.getApplication().getContext().getMainLooper());
         //currentMission = sayNoMission;
@@ -116,6 +122,20 @@ public class DroneStatesSettingsProceduresModule implements ARDeviceControllerLi
         this.pan = 0;
     }
 
+    /**
+     * @return (float): horizontal fov of the camera [deg], 0 until the drone gave its camera settings
+     */
+    float getFov() {
+        return fov;
+    }
+
+    /**
+     * @return (float): max yaw rotation speed of the drone configuration [deg/s]
+     */
+    float getMaxRotationSpeed() {
+        return mSKEModule.getDroneConfig().getMaxRS();
+    }
+
     /**
      * Camera orientation with float arguments.
      * @param tilt (float): Tilt camera consign for the drone [deg]
@@ -159,15 +179,15 @@ public class DroneStatesSettingsProceduresModule implements ARDeviceControllerLi
      * @return true (boolean)
      */
     boolean turnRight(){
-        mSKEModule.setYaw((byte) 50);
+        mPilotingLoop.setYaw((byte) 50);
         return true;
     }
     boolean turnSmallRight(){
-        mSKEModule.setYaw((byte) 10);
+        mPilotingLoop.setYaw((byte) 10);
         return true;
     }
     boolean turnBigRight(){
-        mSKEModule.setYaw((byte) 80);
+        mPilotingLoop.setYaw((byte) 80);
         return true;
     }
 
@@ -177,15 +197,15 @@ public class DroneStatesSettingsProceduresModule implements ARDeviceControllerLi
      * @return true (boolean)
      */
     boolean turnLeft(){
-        mSKEModule.setYaw((byte) -50);
+        mPilotingLoop.setYaw((byte) -50);
         return true;
     }
     boolean turnSmallLeft(){
-        mSKEModule.setYaw((byte) -10);
+        mPilotingLoop.setYaw((byte) -10);
         return true;
     }
     boolean turnBigLeft(){
-        mSKEModule.setYaw((byte) -80);
+        mPilotingLoop.setYaw((byte) -80);
         return true;
     }
 
@@ -196,7 +216,22 @@ public class DroneStatesSettingsProceduresModule implements ARDeviceControllerLi
      */
     boolean fixYaw(){
         if(this.yaw != 0) {
-            mSKEModule.setYaw((byte) 0);
+            mPilotingLoop.setYaw((byte) 0);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Turn the camera at a continuous rate, e.g. the output of a VisualServo (the yaw of the servo is
+     * sent by the PilotingLoop). The rate is only sent if it changed since the last call
+     * @param tiltRate (float): camera tilt velocity [deg/s], positive to look up
+     * @return true (boolean) if a command has been sent
+     */
+    boolean servoTilt(float tiltRate){
+        if(tiltRate != servoTiltRate) {
+            mSKEModule.cameraVelocity(tiltRate, 0);
+            servoTiltRate = tiltRate;
             return true;
         }
         return false;
@@ -209,7 +244,7 @@ public class DroneStatesSettingsProceduresModule implements ARDeviceControllerLi
      * @return true (boolean)
      */
     boolean lookUp(){
-        mSKEModule.setPitch((byte) -90);
+        mPilotingLoop.setPitch((byte) -90);
         return true;
     }
 
@@ -219,7 +254,7 @@ public class DroneStatesSettingsProceduresModule implements ARDeviceControllerLi
      * @return true (boolean)
      */
     boolean lookDown(){
-        mSKEModule.setPitch((byte) +90);
+        mPilotingLoop.setPitch((byte) +90);
         return true;
     }
 
@@ -229,7 +264,7 @@ public class DroneStatesSettingsProceduresModule implements ARDeviceControllerLi
      * @return true (boolean)
      */
     boolean fixPitch(){
-        mSKEModule.setPitch((byte) 0);
+        mPilotingLoop.setPitch((byte) 0);
         return true;
     }
 
@@ -240,7 +275,7 @@ public class DroneStatesSettingsProceduresModule implements ARDeviceControllerLi
      * @return true (boolean)
      */
     boolean climb(){
-        mSKEModule.setGaz((byte) 50);
+        mPilotingLoop.setGaz((byte) 50);
         this.gaz = 50;
         return true;
     }
@@ -251,7 +286,7 @@ public class DroneStatesSettingsProceduresModule implements ARDeviceControllerLi
      * @return true (boolean)
      */
     boolean descend(){
-        mSKEModule.setGaz((byte) -50);
+        mPilotingLoop.setGaz((byte) -50);
         this.gaz = -50;
         return true;
     }
@@ -263,7 +298,7 @@ public class DroneStatesSettingsProceduresModule implements ARDeviceControllerLi
      */
     boolean stabilizeVertically(){
         if(this.gaz != 0) {
-            mSKEModule.setGaz((byte) 0);
+            mPilotingLoop.setGaz((byte) 0);
             this.gaz = 0;
             return true;
         }
@@ -0,0 +1,390 @@
+package ch.epfl.droneproject.module;
+
+import android.util.Log;
+
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.opencv_objdetect;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_objdetect.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+import ch.epfl.droneproject.DroneApplication;
+
+/**
+ * FaceDetector.java
+ * @author blchatel
+ *
+ * Face Detector Class
+ * Each time process is called with an input gray frame, a face detector fill its DetectionBuffer with
+ * the detected faces (score is the number of neighbors of the detection), the biggest face first.
+ * By default a detector may stop at the biggest face, see setFindAll to find all the faces of the frame.
+ * Use create to get the detector of a given Backend, process to compute the faces, getFaces
+ * to access the computed faces and destroy once you does not need the detector any more.
+ * Assume the cascade file of the backend exists in /res/raw of the application apk.
+ * The faces are read from the native results into the preallocated buffer. The bindings still
+ * allocate one Java wrapper per detection call: the CvSeq returned by the legacy API, or the first
+ * Rect of the result vector, which is then moved over the other faces. Nothing is allocated per face.
+ *
+ * Available backends:
+ * @see Backend
+ * A detector can also be created to run on a thread pool:
+ * @see ParallelFaceDetector
+ */
+public abstract class FaceDetector {
+
+    private static final String TAG = "FaceDetector";
+
+    /**
+     * The detection algorithms and their cascade file
+     */
+    public enum Backend {
+        // Note CvHaarClassifierCascade of java cv is not compatible with the new format of cascade files.
+        HAAR_LEGACY("haarcascade_frontalface_alt_old.xml", 20),
+        HAAR("haarcascade_frontalface_alt.xml", 20),
+        // Integer features: typically several times faster than Haar on ARM
+        LBP("lbpcascade_frontalface.xml", 24);
+
+        private final String cascade;
+        // Side of the detection window of the cascade, i.e. the smallest face found
+        private final int windowSize;
+
+        Backend(String cascade, int windowSize) {
+            this.cascade = cascade;
+            this.windowSize = windowSize;
+        }
+
+        int windowSize() {
+            return windowSize;
+        }
+    }
+
+    static final int MAX_FACES = 8;
+    static final double DEFAULT_SCALE_STEP = 1.1;
+    // Neighbor detections a face needs (more than) to be kept by the grouping of the hits
+    static final int MIN_NEIGHBORS = 3;
+    // Capacity of a detector keeping the raw hits, see createRaw
+    static final int MAX_HITS = 256;
+
+    final Backend backend;
+    final DetectionBuffer mFaces;
+    // Neighbor threshold of the grouping, 0 to keep the raw hits
+    final int minNeighbors;
+
+    // Range of the searched face sides in pixels, 0 for no limit
+    int minFaceSize, maxFaceSize;
+    // Ratio between two successive scales of the search
+    double scaleStep;
+    // Search all the faces, or only the biggest one
+    boolean findAll;
+
+    FaceDetector(Backend backend) {
+        this(backend, MAX_FACES, MIN_NEIGHBORS);
+    }
+
+    /**
+     * @param backend (Backend): the detection algorithm
+     * @param capacity (int): maximum number of detections kept per frame
+     * @param minNeighbors (int): neighbor threshold of the grouping, 0 to keep the raw hits
+     */
+    FaceDetector(Backend backend, int capacity, int minNeighbors) {
+        this.backend = backend;
+        this.mFaces = new DetectionBuffer(capacity);
+        this.minNeighbors = minNeighbors;
+        this.minFaceSize = 0;
+        this.maxFaceSize = 0;
+        this.scaleStep = DEFAULT_SCALE_STEP;
+        this.findAll = false;
+    }
+
+    /**
+     * Create and load the face detector of a backend
+     * @param backend (Backend): the detection algorithm
+     * @return (FaceDetector): the detector, which finds no face if its cascade could not be loaded
+     */
+    static FaceDetector create(Backend backend) {
+        switch (backend) {
+            case HAAR_LEGACY:
+                return new LegacyHaarDetector(MAX_FACES, MIN_NEIGHBORS);
+            default:
+                return new CascadeDetector(backend, MAX_FACES, MIN_NEIGHBORS);
+        }
+    }
+
+    /**
+     * Create and load a face detector of a backend keeping the raw hits of the cascade (up to
+     * MAX_HITS), i.e. without grouping them nor stopping at the biggest face. The score of a hit is
+     * meaningless. Used to group the hits of several detectors together (see ParallelFaceDetector)
+     * @param backend (Backend): the detection algorithm
+     * @return (FaceDetector): the detector, which finds no hit if its cascade could not be loaded
+     */
+    static FaceDetector createRaw(Backend backend) {
+        switch (backend) {
+            case HAAR_LEGACY:
+                return new LegacyHaarDetector(MAX_HITS, 0);
+            default:
+                return new CascadeDetector(backend, MAX_HITS, 0);
+        }
+    }
+
+    /**
+     * Create and load a face detector of a backend sharing the scales of the detection between the
+     * threads of a pool (see ParallelFaceDetector) if the pool has more than one thread
+     * @param backend (Backend): the detection algorithm
+     * @param pool (ForkJoinPool): the pool running the detection
+     * @return (FaceDetector): the detector, which finds no face if its cascade could not be loaded
+     */
+    static FaceDetector create(Backend backend, ForkJoinPool pool) {
+        if (pool.getParallelism() > 1) {
+            return new ParallelFaceDetector(backend, pool);
+        }
+        return create(backend);
+    }
+
+    /**
+     * Restrict the detection to the faces whose side is in a given range
+     * @param min (int): smallest face side in pixels, 0 for no limit
+     * @param max (int): biggest face side in pixels, 0 for no limit
+     */
+    void setSizeRange(int min, int max) {
+        this.minFaceSize = min;
+        this.maxFaceSize = max;
+    }
+
+    /**
+     * Set the ratio between two successive scales of the search: a bigger step scans less scales,
+     * hence is faster but may miss faces
+     * @param scaleStep (double): the ratio, greater than 1
+     */
+    void setScaleStep(double scaleStep) {
+        this.scaleStep = scaleStep;
+    }
+
+    /**
+     * Search all the faces of the frame (e.g. several people in view), or only the biggest one: the
+     * legacy detector then stops at the first face found on its biggest scale, with a rough search
+     * @param findAll (boolean): true to find all the faces, up to MAX_FACES
+     */
+    void setFindAll(boolean findAll) {
+        this.findAll = findAll;
+    }
+
+    /**
+     * Detect faces in a grayscale image
+     * @param grayImage (IplImage): one channel image, i.e. the luma plane of the decoded frame
+     */
+    abstract void process(IplImage grayImage);
+
+    abstract void destroy();
+
+    DetectionBuffer getFaces() {
+        return mFaces;
+    }
+
+    Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Extract the cascade file of the backend from the Java resources
+     * @return (File): the extracted file
+     * @throws IOException if the resource can not be extracted
+     */
+    File extractCascade() throws IOException {
+        File classifierFile = Loader.extractResource(getClass(),
+                "/res/raw/" + backend.cascade,
+                DroneApplication.getApplication().getContext().getCacheDir(), "classifier", ".xml");
+        classifierFile.deleteOnExit();
+        if (classifierFile.length() <= 0) {
+            throw new IOException("Could not extract the classifier file from Java resource.");
+        }
+        return classifierFile;
+    }
+
+    void loadFailed(IOException e) {
+        e.printStackTrace();
+        DroneApplication.pushErrorMessage("Failed to load cascade. Exception thrown: " + e);
+        Log.e(TAG, "Failed to load cascade. Exception thrown: " + e);
+    }
+
+    /**
+     * Put the biggest face at the first place of the buffer
+     */
+    void biggestFirst() {
+        int biggest = 0;
+        for (int i = 1; i < mFaces.size(); i++) {
+            if (mFaces.width(i) * mFaces.height(i) > mFaces.width(biggest) * mFaces.height(biggest)) {
+                biggest = i;
+            }
+        }
+        mFaces.swap(0, biggest);
+    }
+
+
+    /**
+     * Haar detector of the OpenCV C API with an old format cascade
+     */
+    private static class LegacyHaarDetector extends FaceDetector {
+
+        // A CvAvgComp detection is 5 integers: x, y, width, height, neighbors
+        private static final int AVG_COMP_SIZE = 5;
+
+        private opencv_objdetect.CvHaarClassifierCascade classifier;
+        // Native copy of the detected sequence, read without allocating a pointer per element
+        private final IntPointer mFacesArray;
+        private final CvSlice mSlice;
+        private final CvSize mMinSize, mMaxSize;
+
+        CvMemStorage storage;
+
+        LegacyHaarDetector(int capacity, int minNeighbors) {
+            super(Backend.HAAR_LEGACY, capacity, minNeighbors);
+            this.mFacesArray = new IntPointer(capacity * AVG_COMP_SIZE);
+            this.mSlice = new CvSlice();
+            this.mMinSize = new CvSize();
+            this.mMaxSize = new CvSize();
+
+            try {
+                File classifierFile = extractCascade();
+                classifier = new opencv_objdetect.CvHaarClassifierCascade(cvLoad(classifierFile.getAbsolutePath()));
+                if (classifier.isNull()) {
+                    throw new IOException("Could not load the classifier file.");
+                }
+                // Objects allocated with a create*() or clone() factory method are automatically released
+                // by the garbage collector, but may still be explicitly released by calling release().
+                // You shall NOT call cvReleaseImage(), cvReleaseMemStorage(), etc. on objects allocated this way.
+                storage = CvMemStorage.create();
+
+            } catch (IOException e) {
+                loadFailed(e);
+            }
+        }
+
+        @Override
+        void destroy(){
+            if(storage != null) {
+                storage.release();
+            }
+            mFacesArray.deallocate();
+        }
+
+        @Override
+        void process(IplImage grayImage) {
+            mFaces.clear();
+            if (storage == null) {
+                return;
+            }
+            cvClearMemStorage(storage);
+            mMinSize.width(minFaceSize).height(minFaceSize);
+            mMaxSize.width(maxFaceSize).height(maxFaceSize);
+            // The raw hits are all kept: the biggest face is only known once they are grouped
+            int flags = findAll || minNeighbors == 0 ? 0 : CV_HAAR_FIND_BIGGEST_OBJECT | CV_HAAR_DO_ROUGH_SEARCH;
+            CvSeq faces = cvHaarDetectObjects(grayImage, classifier, storage, scaleStep, minNeighbors, flags,
+                    mMinSize, mMaxSize);
+            int total = Math.min(faces.total(), mFaces.capacity());
+            if (total > 0) {
+                cvCvtSeqToArray(faces, mFacesArray, mSlice.start_index(0).end_index(total));
+            }
+            for (int i = 0; i < total; i++) {
+                int c = i * AVG_COMP_SIZE;
+                mFaces.add(mFacesArray.get(c), mFacesArray.get(c + 1), mFacesArray.get(c + 2),
+                        mFacesArray.get(c + 3), mFacesArray.get(c + 4));
+            }
+        }
+    }
+
+
+    /**
+     * Detector of the OpenCV C++ API (CascadeClassifier) with a new format cascade, Haar or LBP
+     */
+    private static class CascadeDetector extends FaceDetector {
+
+        private static final int WRAPPED_IMAGES = 4;
+
+        private CascadeClassifier classifier;
+        private final RectVector mRects;
+        private final IntPointer mNeighbors;
+        private final Size mMinSize, mMaxSize;
+
+        // Mat headers wrapping the input images (no copy), created once per input image
+        private final IplImage[] wrappedImages;
+        private final Mat[] wrappedMats;
+        private int nextWrapped;
+
+        CascadeDetector(Backend backend, int capacity, int minNeighbors) {
+            super(backend, capacity, minNeighbors);
+            this.mRects = new RectVector();
+            this.mNeighbors = new IntPointer();
+            this.mMinSize = new Size();
+            this.mMaxSize = new Size();
+            this.wrappedImages = new IplImage[WRAPPED_IMAGES];
+            this.wrappedMats = new Mat[WRAPPED_IMAGES];
+            this.nextWrapped = 0;
+
+            try {
+                File classifierFile = extractCascade();
+                classifier = new CascadeClassifier(classifierFile.getAbsolutePath());
+                if (classifier.empty()) {
+                    classifier = null;
+                    throw new IOException("Could not load the classifier file.");
+                }
+            } catch (IOException e) {
+                loadFailed(e);
+            }
+        }
+
+        @Override
+        void destroy() {
+            if (classifier != null) {
+                classifier.deallocate();
+            }
+            for (Mat mat : wrappedMats) {
+                if (mat != null) {
+                    mat.release();
+                }
+            }
+            mRects.deallocate();
+        }
+
+        private Mat wrap(IplImage image) {
+            for (int i = 0; i < WRAPPED_IMAGES; i++) {
+                if (wrappedImages[i] == image) {
+                    return wrappedMats[i];
+                }
+            }
+            if (wrappedMats[nextWrapped] != null) {
+                wrappedMats[nextWrapped].release();
+            }
+            Mat mat = cvarrToMat(image);
+            wrappedImages[nextWrapped] = image;
+            wrappedMats[nextWrapped] = mat;
+            nextWrapped = (nextWrapped + 1) % WRAPPED_IMAGES;
+            return mat;
+        }
+
+        @Override
+        void process(IplImage grayImage) {
+            mFaces.clear();
+            if (classifier == null) {
+                return;
+            }
+            mMinSize.width(minFaceSize).height(minFaceSize);
+            mMaxSize.width(maxFaceSize).height(maxFaceSize);
+            classifier.detectMultiScale2(wrap(grayImage), mRects, mNeighbors, scaleStep, minNeighbors, 0, mMinSize, mMaxSize);
+            long total = Math.min(mRects.size(), mFaces.capacity());
+            if (total > 0) {
+                // The elements of the vector are contiguous: a single wrapper is moved over them
+                Rect r = mRects.get(0);
+                for (int i = 0; i < total; i++) {
+                    r.position(i);
+                    mFaces.add(r.x(), r.y(), r.width(), r.height(), mNeighbors.get(i));
+                }
+            }
+            biggestFirst();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package ch.epfl.droneproject.module;
+
+import android.util.Log;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+import ch.epfl.droneproject.DroneApplication;
+
+/**
+ * FaceDetectorBenchmark.java
+ * @author blchatel
+ *
+ * Compare the face detector backends on the same set of frames.
+ * The frames are copied from the stream with addFrame (one every FRAME_PERIOD), then run() process
+ * all of them with each backend and report for each one the mean processing time per frame and the
+ * hit rate (i.e. the ratio of frames where at least a face is found).
+ * Each backend is measured on a single thread and on all the cores (see ParallelFaceDetector).
+ * Running the benchmark is long: call run() out of the vision thread.
+ * @see FaceDetector.Backend
+ */
+class FaceDetectorBenchmark {
+
+    private static final String TAG = "FaceBenchmark";
+
+    // Keep one frame of the stream every FRAME_PERIOD frames to get different scenes
+    private static final int FRAME_PERIOD = 5;
+
+    private final IplImage[] frames;
+    private int count;
+    private int skipped;
+
+    /**
+     * Default constructor. Allocate the frame set
+     * @param frameCount (int): number of frames of the set
+     * @param width (int): frame width
+     * @param height (int): frame height
+     */
+    FaceDetectorBenchmark(int frameCount, int width, int height) {
+        frames = new IplImage[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            frames[i] = IplImage.create(width, height, IPL_DEPTH_8U, 1);
+        }
+        count = 0;
+        skipped = 0;
+    }
+
+    /**
+     * Offer a frame of the stream to the set
+     * @param grayImage (IplImage): the luma of the frame, of the set frame size
+     * @return (boolean): true once the set is full, i.e. the benchmark can be run
+     */
+    boolean addFrame(IplImage grayImage) {
+        if (count < frames.length && skipped++ % FRAME_PERIOD == 0) {
+            cvCopy(grayImage, frames[count++]);
+        }
+        return count == frames.length;
+    }
+
+    /**
+     * Run each backend on the whole frame set, on one thread then on all the cores if there are
+     * several, report the results in the console and release the set
+     */
+    void run() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(cores);
+
+        for (FaceDetector.Backend backend : FaceDetector.Backend.values()) {
+            measure(FaceDetector.create(backend), backend.toString());
+            if (cores > 1) {
+                measure(FaceDetector.create(backend, pool), backend + " x" + cores);
+            }
+        }
+        pool.shutdown();
+
+        for (IplImage frame : frames) {
+            frame.release();
+        }
+    }
+
+    /**
+     * Process the whole frame set with a detector, report its results and destroy it
+     * @param detector (FaceDetector): the detector to measure
+     * @param name (String): name of the detector in the report
+     */
+    private void measure(FaceDetector detector, String name) {
+
+        // The first detection allocates the internal buffers of the detector
+        detector.process(frames[0]);
+
+        int hits = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            detector.process(frames[i]);
+            if (detector.getFaces().size() > 0) {
+                hits++;
+            }
+        }
+        double msPerFrame = (System.nanoTime() - start) / 1e6 / count;
+        detector.destroy();
+
+        String report = String.format(Locale.US, "%s: %.1f ms/frame, hit rate %d%% (%d frames)",
+                name, msPerFrame, 100 * hits / count, count);
+        Log.i(TAG, report);
+        DroneApplication.pushInfoMessage(report);
+    }
+}
@@ -0,0 +1,145 @@
+package ch.epfl.droneproject.module;
+
+import android.os.Debug;
+import android.os.Environment;
+import android.util.Log;
+
+import org.bytedeco.javacpp.DoublePointer;
+import org.bytedeco.javacpp.IntPointer;
+
+import java.io.File;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+
+import ch.epfl.droneproject.DroneApplication;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_face.FaceRecognizer;
+
+/**
+ * FaceRecognizerBenchmark.java
+ * @author blchatel
+ *
+ * Compare the face recognizer engines on the same gallery, i.e. the training images of the phone.
+ * One image every HOLD_OUT is kept out of the training to test the engines. For each engine, run()
+ * reports in the console:
+ *  - the training time on the other images
+ *  - the mean predict latency and the accuracy (i.e. the ratio of test images given their label)
+ *  - the memory of the model: the native heap allocated by the training and the size of the saved model
+ *  - for the engines which can update a model, the time to learn the test images without training again
+ * Running the benchmark is long: call run() out of the vision thread.
+ * @see AutoFaceRecognizer.Engine
+ */
+class FaceRecognizerBenchmark {
+
+    private static final String TAG = "RecognizerBenchmark";
+
+    // One image every HOLD_OUT is a test image
+    private static final int HOLD_OUT = 5;
+
+    /**
+     * Run each engine on the gallery and report the results
+     */
+    void run() {
+        File[] imageFiles = AutoFaceRecognizer.listTrainingImages(
+                Environment.getExternalStorageDirectory().toString().concat(AutoFaceRecognizer.TRAINING_FOLDER_PATH));
+        if (imageFiles == null || imageFiles.length < 2 * HOLD_OUT) {
+            DroneApplication.pushErrorMessage("Not enough images for the recognizer benchmark");
+            return;
+        }
+
+        int testCount = imageFiles.length / HOLD_OUT;
+        File[] trainFiles = new File[imageFiles.length - testCount];
+        File[] testFiles = new File[testCount];
+        int train = 0, test = 0;
+        for (int i = 0; i < imageFiles.length; i++) {
+            if (i % HOLD_OUT == HOLD_OUT - 1 && test < testCount) {
+                testFiles[test++] = imageFiles[i];
+            } else {
+                trainFiles[train++] = imageFiles[i];
+            }
+        }
+        trainFiles = Arrays.copyOf(trainFiles, train);
+
+        MatVector testImages = new MatVector(testCount);
+        Mat testLabels = new Mat(testCount, 1, CV_32SC1);
+        AutoFaceRecognizer.loadImages(testFiles, testImages, testLabels, new HashMap<Integer, String>());
+
+        for (AutoFaceRecognizer.Engine engine : AutoFaceRecognizer.Engine.values()) {
+            measure(engine, trainFiles, testFiles, testImages, testLabels);
+        }
+
+        for (int i = 0; i < testImages.size(); i++) {
+            testImages.get(i).release();
+        }
+        testLabels.release();
+    }
+
+    /**
+     * Train a model of an engine, measure it, report its results and release it
+     * @param engine (Engine): the engine to measure
+     * @param trainFiles (File[]): the training images
+     * @param testFiles (File[]): the test images
+     * @param testImages (MatVector): the loaded test images
+     * @param testLabels (Mat): the labels of the test images
+     */
+    private void measure(AutoFaceRecognizer.Engine engine, File[] trainFiles, File[] testFiles,
+                         MatVector testImages, Mat testLabels) {
+
+        FaceRecognizer recognizer = engine.create();
+        try {
+            long heap = Debug.getNativeHeapAllocatedSize();
+            long start = System.nanoTime();
+            AutoFaceRecognizer.learn(recognizer, trainFiles, false);
+            double trainMs = (System.nanoTime() - start) / 1e6;
+            long heapKb = (Debug.getNativeHeapAllocatedSize() - heap) / 1024;
+
+            IntBuffer labels = testLabels.createBuffer();
+            IntPointer label = new IntPointer(1);
+            DoublePointer confidence = new DoublePointer(1);
+            int hits = 0;
+            long count = testImages.size();
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                recognizer.predict(testImages.get(i), label, confidence);
+                if (label.get(0) == labels.get(i)) {
+                    hits++;
+                }
+            }
+            double predictMs = (System.nanoTime() - start) / 1e6 / count;
+            label.deallocate();
+            confidence.deallocate();
+
+            File modelFile = File.createTempFile("model", ".yml",
+                    DroneApplication.getApplication().getContext().getCacheDir());
+            recognizer.save(modelFile.getAbsolutePath());
+            long modelKb = modelFile.length() / 1024;
+            if (!modelFile.delete()) {
+                Log.w(TAG, "Failed to delete " + modelFile);
+            }
+
+            String update = "";
+            if (engine.canUpdate()) {
+                start = System.nanoTime();
+                AutoFaceRecognizer.learn(recognizer, testFiles, true);
+                update = String.format(Locale.US, ", update %d images %.0f ms", testFiles.length,
+                        (System.nanoTime() - start) / 1e6);
+            }
+
+            String report = String.format(Locale.US,
+                    "%s: train %.0f ms (%d images), predict %.1f ms, accuracy %d%%, heap %d ko, model %d ko%s",
+                    engine, trainMs, trainFiles.length, predictMs, 100 * hits / count, heapKb, modelKb, update);
+            Log.i(TAG, report);
+            DroneApplication.pushInfoMessage(report);
+
+        } catch (Exception e) {
+            // e.g. fisher faces with a single subject
+            Log.e(TAG, engine + " failed: " + e);
+            DroneApplication.pushErrorMessage(engine + " failed: " + e.getMessage());
+        } finally {
+            recognizer.deallocate();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package ch.epfl.droneproject.module;
+
+import java.nio.ByteBuffer;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.CV_INTER_AREA;
+import static org.bytedeco.javacpp.opencv_imgproc.cvResize;
+
+/**
+ * FaceTrackCache.java
+ * @author blchatel
+ *
+ * Cache of the identity of each face track, i.e. of the faces detected on successive frames at
+ * overlapping places. While a known subject stays in view, the recognizer does not run on each
+ * frame: the identity of its track is reused and only verified again
+ *  - every REVERIFY_PERIOD frames
+ *  - or when the appearance of the face changes (e.g. another person at the same place, the subject
+ *    turning its head), measured on a THUMBNAIL_SIZE x THUMBNAIL_SIZE thumbnail of the face
+ * Use associate to get the track of a detected face, needsRecognition to know whether the recognizer
+ * must run on it and store to cache its result. Several faces of a frame can be checked before their
+ * results are stored (i.e. recognized as a batch): the thumbnail is kept per track until then.
+ * The faces of a frame get distinct tracks: a track continued or started by a face of the frame is
+ * not available to the other faces of the frame, hence two people never share a cached identity.
+ * Not thread safe: used by the face thread only.
+ * @see AutoFaceRecognizer
+ */
+class FaceTrackCache {
+
+    // At least one track per face of a frame
+    private static final int MAX_TRACKS = FaceDetector.MAX_FACES;
+    // A face overlapping the last face of a track more than this (intersection over union) continues it
+    private static final double OVERLAP_THRESHOLD = 0.3;
+    // A track not seen for more than MAX_GAP frames is ended
+    private static final int MAX_GAP = 15;
+    private static final int REVERIFY_PERIOD = 30;
+    private static final int THUMBNAIL_SIZE = 16;
+    // Mean absolute difference (in gray levels, brightness removed) above which the appearance changed
+    private static final int APPEARANCE_THRESHOLD = 20;
+
+    // Track of each slot: id (-1 if free), last face, last frame seen and verified, cached identity
+    private final int[] ids;
+    private final int[] xs, ys, widths, heights;
+    private final long[] lastSeen, lastVerified;
+    private final AutoFaceRecognizer.Recognized[] identities;
+    private final byte[][] thumbnails;
+    // Thumbnail of the last face of each track, stored with its identity
+    private final byte[][] candidates;
+    private int nextId;
+
+    // Thumbnail of the current face, before its copy in the candidate of its track
+    private final IplImage thumbnailImage;
+    private final ByteBuffer thumbnailBuffer;
+
+    private int recognitions, lookups;
+
+    /**
+     * Default constructor
+     * @param arena (NativeArena): owner of the thumbnail image
+     */
+    FaceTrackCache(NativeArena arena) {
+        ids = new int[MAX_TRACKS];
+        xs = new int[MAX_TRACKS];
+        ys = new int[MAX_TRACKS];
+        widths = new int[MAX_TRACKS];
+        heights = new int[MAX_TRACKS];
+        lastSeen = new long[MAX_TRACKS];
+        lastVerified = new long[MAX_TRACKS];
+        identities = new AutoFaceRecognizer.Recognized[MAX_TRACKS];
+        thumbnails = new byte[MAX_TRACKS][THUMBNAIL_SIZE * THUMBNAIL_SIZE];
+        candidates = new byte[MAX_TRACKS][THUMBNAIL_SIZE * THUMBNAIL_SIZE];
+        for (int t = 0; t < MAX_TRACKS; t++) {
+            ids[t] = -1;
+        }
+        nextId = 0;
+
+        thumbnailImage = arena.image(NativeArena.STAGE_FACE, THUMBNAIL_SIZE, THUMBNAIL_SIZE, IPL_DEPTH_8U, 1);
+        thumbnailBuffer = thumbnailImage.getByteBuffer();
+        recognitions = 0;
+        lookups = 0;
+    }
+
+    /**
+     * Find the track of a detected face, or start a new one (in a free slot or in the slot of the
+     * oldest track). The tracks already given to a face of the same frame are skipped
+     * @param sequence (long): sequence number of the frame
+     * @param x (int): face x
+     * @param y (int): face y
+     * @param w (int): face width
+     * @param h (int): face height
+     * @return (int): the slot of the track
+     */
+    int associate(long sequence, int x, int y, int w, int h) {
+        int best = -1;
+        double bestOverlap = OVERLAP_THRESHOLD;
+        int oldest = -1;
+        for (int t = 0; t < MAX_TRACKS; t++) {
+            if (ids[t] >= 0 && sequence - lastSeen[t] > MAX_GAP) {
+                ids[t] = -1;
+            }
+            if (ids[t] >= 0 && lastSeen[t] == sequence) {
+                // Claimed by another face of this frame
+                continue;
+            }
+            if (ids[t] < 0) {
+                if (oldest < 0 || ids[oldest] >= 0) {
+                    oldest = t;
+                }
+                continue;
+            }
+            if (oldest < 0 || (ids[oldest] >= 0 && lastSeen[t] < lastSeen[oldest])) {
+                oldest = t;
+            }
+            double overlap = overlap(t, x, y, w, h);
+            if (overlap > bestOverlap) {
+                best = t;
+                bestOverlap = overlap;
+            }
+        }
+
+        if (best < 0) {
+            best = oldest;
+            ids[best] = nextId++;
+            identities[best] = null;
+        }
+        xs[best] = x;
+        ys[best] = y;
+        widths[best] = w;
+        heights[best] = h;
+        lastSeen[best] = sequence;
+        return best;
+    }
+
+    /**
+     * Compute the thumbnail of the face and tell whether its track needs to be recognized again
+     * @param track (int): slot of the track of the face
+     * @param sequence (long): sequence number of the frame
+     * @param face (IplImage): the face, i.e. the frame with its ROI on the face
+     * @return (boolean): true if the identity of the track is unknown, too old or if the face changed
+     */
+    boolean needsRecognition(int track, long sequence, IplImage face) {
+        lookups++;
+        cvResize(face, thumbnailImage, CV_INTER_AREA);
+        thumbnailBuffer.position(0);
+        thumbnailBuffer.get(candidates[track]);
+
+        return identities[track] == null
+                || sequence - lastVerified[track] >= REVERIFY_PERIOD
+                || difference(thumbnails[track], candidates[track]) > APPEARANCE_THRESHOLD;
+    }
+
+    /**
+     * Cache the identity of a track, recognized on the face of the track given to the last needsRecognition
+     * @param track (int): slot of the track
+     * @param sequence (long): sequence number of the frame
+     * @param identity (Recognized): result of the recognizer
+     */
+    void store(int track, long sequence, AutoFaceRecognizer.Recognized identity) {
+        recognitions++;
+        identities[track] = identity;
+        lastVerified[track] = sequence;
+        System.arraycopy(candidates[track], 0, thumbnails[track], 0, candidates[track].length);
+    }
+
+    /**
+     * Forget all the identities, e.g. once the recognizer uses a new model. The tracks are kept
+     */
+    void clearIdentities() {
+        for (int t = 0; t < MAX_TRACKS; t++) {
+            identities[t] = null;
+        }
+    }
+
+    AutoFaceRecognizer.Recognized identity(int track) {
+        return identities[track];
+    }
+
+    int id(int track) {
+        return ids[track];
+    }
+
+    /**
+     * @return (String): the number of recognitions for the number of faces
+     */
+    String report() {
+        return recognitions + " recognitions for " + lookups + " faces";
+    }
+
+    /**
+     * @return (double): intersection over union of the last face of a track and a face
+     */
+    private double overlap(int t, int x, int y, int w, int h) {
+        int ix = Math.min(xs[t] + widths[t], x + w) - Math.max(xs[t], x);
+        int iy = Math.min(ys[t] + heights[t], y + h) - Math.max(ys[t], y);
+        if (ix <= 0 || iy <= 0) {
+            return 0;
+        }
+        double intersection = (double) ix * iy;
+        double union = (double) widths[t] * heights[t] + (double) w * h - intersection;
+        return intersection / union;
+    }
+
+    /**
+     * @return (int): mean absolute difference of two thumbnails once their mean brightness is removed
+     */
+    private static int difference(byte[] a, byte[] b) {
+        int sumA = 0, sumB = 0;
+        for (int i = 0; i < a.length; i++) {
+            sumA += a[i] & 0xFF;
+            sumB += b[i] & 0xFF;
+        }
+        int offset = (sumA - sumB) / a.length;
+        int sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += Math.abs((a[i] & 0xFF) - (b[i] & 0xFF) - offset);
+        }
+        return sum / a.length;
+    }
+}
@@ -0,0 +1,199 @@
+package ch.epfl.droneproject.module;
+
+/**
+ * FrameBudgetGovernor.java
+ * @author blchatel
+ *
+ * Adapt the work of the vision pipeline to a time budget per frame (e.g. 33 ms for 30 fps).
+ * The cost of each stage is measured (see report, endFrame and endFaceFrame) and smoothed.
+ * Each thread of the pipeline is budgeted against its own period, with its own quality ladder:
+ *  - the vision loop against the frame budget. Its stages are the blob detection and the hand off
+ *    to the face thread (submit and readResult). Over the budget, the costliest of them is lowered:
+ *    the blob ladder (the mask level of the blob detection and the number of frames between two
+ *    blob detections while the target is steady), or the face ladder which gives less frames to
+ *    the face thread. Well under the budget, the blob ladder goes back up
+ *  - the face thread against the frames it is given, i.e. the face period times the frame budget:
+ *    the face ladder (the smallest face searched in cascade windows, the ratio between two face
+ *    scales and the number of frames between two frames given to the face thread). It only goes
+ *    back up while the vision loop is well under its budget too
+ * The face work is asynchronous, hence its cost is never compared with the vision loop one.
+ * The vision thread reports its stages and reads the settings, the face thread reports its frames.
+ * @see AutoPilotModule
+ */
+class FrameBudgetGovernor {
+
+    // Stages of the vision thread
+    static final int STAGE_BLOB = 0;
+    static final int STAGE_HANDOFF = 1;
+    static final int STAGE_LOOP = 2;
+    // Stage of the face thread
+    static final int STAGE_FACE = 3;
+    private static final int STAGES = 4;
+
+    static final int DEFAULT_BUDGET_MS = 33;
+
+    // Weight of the last measure in the smoothed costs
+    private static final double SMOOTHING = 0.1;
+    // The quality goes up if the loop takes less than SLACK times the budget
+    private static final double SLACK = 0.6;
+    // Number of frames (of the thread) between two changes of quality, i.e. for the costs to settle
+    private static final int COOLDOWN = 30;
+
+    // The quality ladders, from the best quality to the cheapest work
+    private static final int[] BLOB_LEVELS = {1, 2, 2};
+    private static final int[] DETECTION_PERIODS = {1, 2, 3};
+    private static final int[] FACE_MIN_WINDOWS = {1, 1, 2, 2, 3};
+    private static final double[] FACE_SCALE_STEPS = {1.1, 1.1, 1.1, 1.2, 1.3};
+    private static final int[] FACE_PERIODS = {1, 2, 2, 2, 4};
+    // The steps of the pipeline before the governor: blob detection on level 2, every face frame given
+    private static final int DEFAULT_BLOB_STEP = 1;
+    private static final int DEFAULT_FACE_STEP = 0;
+
+    private volatile long budgetNs;
+    private final double[] costs;
+    private volatile int blobStep, faceStep;
+    // Frames before the next change of each ladder, of the vision thread and of the face thread
+    private int cooldown, faceCooldown;
+
+    /**
+     * Default constructor
+     * @param budgetMs (int): time budget of a frame in millisecond
+     */
+    FrameBudgetGovernor(int budgetMs) {
+        costs = new double[STAGES];
+        blobStep = DEFAULT_BLOB_STEP;
+        faceStep = DEFAULT_FACE_STEP;
+        cooldown = COOLDOWN;
+        faceCooldown = COOLDOWN;
+        setBudget(budgetMs);
+    }
+
+    /**
+     * @param budgetMs (int): time budget of a frame in millisecond
+     */
+    void setBudget(int budgetMs) {
+        budgetNs = budgetMs * 1000000L;
+    }
+
+    /**
+     * Add a measure of a stage
+     * @param stage (int): STAGE_BLOB, STAGE_HANDOFF, STAGE_LOOP or STAGE_FACE
+     * @param ns (long): the time spent by the stage in nanoseconds
+     */
+    void report(int stage, long ns) {
+        synchronized (costs) {
+            costs[stage] += SMOOTHING * (ns - costs[stage]);
+        }
+    }
+
+    /**
+     * Report the time of the whole loop for the last frame and adapt the quality. Called by the vision thread
+     * @param loopNs (long): time spent on the frame in nanoseconds, i.e. without waiting for the frame
+     */
+    void endFrame(long loopNs) {
+        report(STAGE_LOOP, loopNs);
+        if (cooldown > 0) {
+            cooldown--;
+            return;
+        }
+
+        double loop = cost(STAGE_LOOP);
+        boolean blobDown = blobStep < BLOB_LEVELS.length - 1;
+        if (loop > budgetNs) {
+            // Lower the most expensive stage of the vision thread
+            if (blobDown && cost(STAGE_BLOB) >= cost(STAGE_HANDOFF)) {
+                blobStep++;
+                cooldown = COOLDOWN;
+            } else if (stepFace(1)) {
+                cooldown = COOLDOWN;
+            } else if (blobDown) {
+                blobStep++;
+                cooldown = COOLDOWN;
+            }
+        } else if (loop < SLACK * budgetNs && blobStep > 0) {
+            blobStep--;
+            cooldown = COOLDOWN;
+        }
+    }
+
+    /**
+     * Report the time spent on a frame by the face thread and adapt the face quality. Called by the
+     * face thread
+     * @param faceNs (long): time spent on the frame in nanoseconds, i.e. without waiting for the frame
+     */
+    void endFaceFrame(long faceNs) {
+        report(STAGE_FACE, faceNs);
+        if (faceCooldown > 0) {
+            faceCooldown--;
+            return;
+        }
+
+        double face = cost(STAGE_FACE);
+        // The face thread is given one frame every face period
+        long faceBudgetNs = facePeriod() * budgetNs;
+        if (face > faceBudgetNs) {
+            if (stepFace(1)) {
+                faceCooldown = COOLDOWN;
+            }
+        } else if (face < SLACK * faceBudgetNs && cost(STAGE_LOOP) < SLACK * budgetNs) {
+            if (stepFace(-1)) {
+                faceCooldown = COOLDOWN;
+            }
+        }
+    }
+
+    /**
+     * Move the face ladder, shared by the two threads
+     * @param delta (int): 1 to lower the quality, -1 to raise it
+     * @return (boolean): false if the ladder is already at its end
+     */
+    private synchronized boolean stepFace(int delta) {
+        int step = faceStep + delta;
+        if (step < 0 || step >= FACE_PERIODS.length) {
+            return false;
+        }
+        faceStep = step;
+        return true;
+    }
+
+    /**
+     * @param stage (int): STAGE_BLOB, STAGE_HANDOFF, STAGE_LOOP or STAGE_FACE
+     * @return (double): the smoothed time spent by the stage in nanoseconds
+     */
+    double cost(int stage) {
+        synchronized (costs) {
+            return costs[stage];
+        }
+    }
+
+    /**
+     * @return (int): the step of the face ladder, it changes when the face settings change
+     */
+    int faceStep() {
+        return faceStep;
+    }
+
+    int blobLevel() {
+        return BLOB_LEVELS[blobStep];
+    }
+
+    int detectionPeriod() {
+        return DETECTION_PERIODS[blobStep];
+    }
+
+    /**
+     * @param windowSize (int): side of the detection window of the face cascade
+     * @return (int): side of the smallest face to search
+     */
+    int faceMinSize(int windowSize) {
+        return FACE_MIN_WINDOWS[faceStep] * windowSize;
+    }
+
+    double faceScaleStep() {
+        return FACE_SCALE_STEPS[faceStep];
+    }
+
+    int facePeriod() {
+        return FACE_PERIODS[faceStep];
+    }
+}
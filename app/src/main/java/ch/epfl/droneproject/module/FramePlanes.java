@@ -0,0 +1,121 @@
+package ch.epfl.droneproject.module;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
+
+/**
+ * FramePlanes.java
+ * @author blchatel
+ *
+ * The Y, U and V planes of the current decoded frame, for the vision thread. The detectors read the
+ * planes as they are: the blob detector down-samples and classifies them in the fused sweep of its
+ * ColorThreshold, the face thread gets a copy of the luma.
+ * The only color conversion left is the one of the color calibration: the mean HSV color of a small
+ * touched region, converted on the region only, at level 1 (the native resolution of the chroma)
+ * and the same way as the ColorThreshold table (YCrCb to RGB, then RGB to full range HSV).
+ * Its images are allocated on the first calibration, in the NativeArena of the pipeline.
+ * Not thread safe: used by the vision thread only.
+ * @see AutoPilotModule
+ * @see ColorThreshold
+ */
+class FramePlanes {
+
+    // Side of the calibration region in full resolution pixels
+    static final int CALIBRATION_SIDE = 16;
+
+    private final int width, height;
+    private final NativeArena arena;
+
+    // Headers on the planes of the frame
+    private IplImage lumaImage, uImage, vImage;
+
+    // Calibration images at level 1: luma of the region, YCrCb, RGB and HSV
+    private IplImage lumaRegion, yCrCb, rgb, hsv;
+    // Preallocated ROI of the planes
+    private final CvRect roi;
+
+    /**
+     * Default constructor
+     * @param width (int): frame width, aligned on 1 << ColorThreshold.MAX_LEVEL pixels
+     * @param height (int): frame height, aligned on 1 << ColorThreshold.MAX_LEVEL pixels
+     * @param arena (NativeArena): owner of the calibration images
+     */
+    FramePlanes(int width, int height, NativeArena arena) {
+        this.width = width;
+        this.height = height;
+        this.arena = arena;
+        this.roi = new CvRect();
+    }
+
+    /**
+     * Set the frame
+     * @param lumaImage (IplImage): header on the Y plane of the frame
+     * @param uImage (IplImage): header on the U plane of the frame
+     * @param vImage (IplImage): header on the V plane of the frame
+     */
+    void setFrame(IplImage lumaImage, IplImage uImage, IplImage vImage) {
+        this.lumaImage = lumaImage;
+        this.uImage = uImage;
+        this.vImage = vImage;
+    }
+
+    int width() {
+        return width;
+    }
+
+    int height() {
+        return height;
+    }
+
+    /**
+     * @return (IplImage): header on the Y plane of the frame
+     */
+    IplImage luma() {
+        return lumaImage;
+    }
+
+    /**
+     * @return (IplImage): header on the U plane of the frame (half resolution)
+     */
+    IplImage uPlane() {
+        return uImage;
+    }
+
+    /**
+     * @return (IplImage): header on the V plane of the frame (half resolution)
+     */
+    IplImage vPlane() {
+        return vImage;
+    }
+
+    /**
+     * Mean color of a calibration region of CALIBRATION_SIDE pixels
+     * @param x (int): region x in full resolution, even
+     * @param y (int): region y in full resolution, even
+     * @return (CvScalar): the mean H, S and V (full range hue) of the region
+     */
+    CvScalar meanHsv(int x, int y) {
+        int side = CALIBRATION_SIDE / 2;
+        if (hsv == null) {
+            lumaRegion = arena.image(NativeArena.STAGE_FRAME, side, side, IPL_DEPTH_8U, 1);
+            yCrCb = arena.image(NativeArena.STAGE_FRAME, side, side, IPL_DEPTH_8U, 3);
+            rgb = arena.image(NativeArena.STAGE_FRAME, side, side, IPL_DEPTH_8U, 3);
+            hsv = arena.image(NativeArena.STAGE_FRAME, side, side, IPL_DEPTH_8U, 3);
+        }
+
+        // Luma down-sampled to the chroma resolution with a box filter, as the ColorThreshold sweep
+        cvSetImageROI(lumaImage, roi.x(x).y(y).width(CALIBRATION_SIDE).height(CALIBRATION_SIDE));
+        cvResize(lumaImage, lumaRegion, CV_INTER_AREA);
+        cvResetImageROI(lumaImage);
+
+        cvSetImageROI(uImage, roi.x(x / 2).y(y / 2).width(side).height(side));
+        cvSetImageROI(vImage, roi);
+        cvMerge(lumaRegion, vImage, uImage, null, yCrCb);
+        cvResetImageROI(uImage);
+        cvResetImageROI(vImage);
+
+        cvCvtColor(yCrCb, rgb, COLOR_YCrCb2RGB);
+        cvCvtColor(rgb, hsv, COLOR_RGB2HSV_FULL);
+        return cvAvg(hsv);
+    }
+}
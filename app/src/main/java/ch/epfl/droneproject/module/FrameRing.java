@@ -0,0 +1,109 @@
+package ch.epfl.droneproject.module;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * FrameRing.java
+ * @author blchatel
+ *
+ * Bounded ring buffer of preallocated images connecting two stages of the vision pipeline.
+ * A single producer copies its frames into the free slots (or drops them if the ring is full, i.e.
+ * the next stage is late) and a single consumer takes them in order.
+ * Each slot keeps the sequence number of its frame, so a result computed on a slot can be matched
+ * to the frame it comes from.
+ * The slots are owned by the NativeArena of the pipeline, which releases them.
+ * @see AutoPilotModule
+ */
+class FrameRing {
+
+    private final IplImage[] slots;
+    private final long[] sequences;
+    private final Object lock;
+
+    // Oldest slot (i.e. next to take) and number of slots filled
+    private int head;
+    private int count;
+
+    /**
+     * Default constructor. Allocate all the slots once
+     * @param capacity (int): number of slots
+     * @param width (int): frame width
+     * @param height (int): frame height
+     * @param channels (int): number of channels of the frames
+     * @param arena (NativeArena): owner of the slots
+     * @param stage (int): stage of the arena accounting the slots, i.e. the consumer
+     */
+    FrameRing(int capacity, int width, int height, int channels, NativeArena arena, int stage) {
+        slots = new IplImage[capacity];
+        sequences = new long[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = arena.image(stage, width, height, IPL_DEPTH_8U, channels);
+        }
+        lock = new Object();
+        head = 0;
+        count = 0;
+    }
+
+    /**
+     * Copy a frame in the next free slot. Producer side.
+     * @param image (IplImage): frame to copy, of the ring frame size
+     * @param sequence (long): sequence number of the frame
+     * @return (boolean): true if the frame has been queued, false if the ring is full and the frame dropped
+     */
+    boolean offer(IplImage image, long sequence) {
+        int tail;
+        synchronized (lock) {
+            if (count == slots.length) {
+                return false;
+            }
+            tail = (head + count) % slots.length;
+        }
+
+        // The free slot is owned by the producer until count is incremented
+        cvCopy(image, slots[tail]);
+        sequences[tail] = sequence;
+
+        synchronized (lock) {
+            count++;
+            lock.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the oldest queued frame. Consumer side.
+     * The slot is owned by the consumer (i.e. never overwritten) until release() is called.
+     * @param timeout (long): maximum time to wait in millisecond
+     * @return (int): the slot index or -1 if nothing was queued before the timeout
+     * @throws InterruptedException if the consumer is interrupted while waiting
+     */
+    int take(long timeout) throws InterruptedException {
+        synchronized (lock) {
+            long deadline = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+            while (count == 0 && remaining > 0) {
+                lock.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return count == 0 ? -1 : head;
+        }
+    }
+
+    /**
+     * Give back the slot obtained with take() to the producer
+     */
+    void release() {
+        synchronized (lock) {
+            head = (head + 1) % slots.length;
+            count--;
+        }
+    }
+
+    IplImage image(int slot) {
+        return slots[slot];
+    }
+
+    long sequence(int slot) {
+        return sequences[slot];
+    }
+}
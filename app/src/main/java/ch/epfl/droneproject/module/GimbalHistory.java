@@ -0,0 +1,80 @@
+package ch.epfl.droneproject.module;
+
+/**
+ * GimbalHistory.java
+ * @author blchatel
+ *
+ * Short history of the tilt of the camera, timestamped on reception.
+ * The video frames arrive 100 to 200 ms after they were shot (encoding, wifi, decoding, vision), and
+ * the drone and its camera keep turning meanwhile: a target measured in a frame is no longer where
+ * it was when the controller uses it. With the reception time of the frame (see
+ * DecodedFrame.getReceivedNs) the history gives how much the camera tilted since the frame, hence
+ * the measure can be reprojected to now before computing the corrections. The yaw of the drone is
+ * given the same way by the TelemetryRing.
+ *
+ * The history is a ring of the last CAPACITY samples, interpolated linearly between two samples.
+ * The callback of the drone records, the vision thread reads: the methods are synchronized, they
+ * are short and allocate nothing.
+ * @see AutoPilotModule
+ * @see VisualServo
+ */
+class GimbalHistory {
+
+    // Samples kept, the drone sends its camera orientation on each change
+    private static final int CAPACITY = 32;
+
+    private final long[] times;
+    private final float[] tilts;
+    // Next slot to write and number of samples
+    private int next;
+    private int count;
+
+    GimbalHistory() {
+        times = new long[CAPACITY];
+        tilts = new float[CAPACITY];
+        next = 0;
+        count = 0;
+    }
+
+    /**
+     * @param ns (long): System.nanoTime() of the reception
+     * @param tiltDeg (float): tilt of the camera in degree, positive up
+     */
+    synchronized void recordTilt(long ns, float tiltDeg) {
+        times[next] = ns;
+        tilts[next] = tiltDeg;
+        next = (next + 1) % CAPACITY;
+        count = Math.min(count + 1, CAPACITY);
+    }
+
+    /**
+     * @param ns (long): System.nanoTime() of a past event, e.g. the reception of a frame
+     * @return (float): the angle the camera tilted up since then [deg], 0 if unknown
+     */
+    synchronized float tiltSince(long ns) {
+        if (count == 0 || ns >= times[newest()]) {
+            return 0;
+        }
+        return tilts[newest()] - tiltAt(ns);
+    }
+
+    private int newest() {
+        return (next - 1 + CAPACITY) % CAPACITY;
+    }
+
+    /**
+     * @return (float): the tilt at ns, the oldest one if ns is older than the history
+     */
+    private float tiltAt(long ns) {
+        int later = newest();
+        for (int i = 1; i < count; i++) {
+            int earlier = (later - 1 + CAPACITY) % CAPACITY;
+            if (times[earlier] <= ns) {
+                float ratio = (float) (ns - times[earlier]) / (times[later] - times[earlier]);
+                return tilts[earlier] + ratio * (tilts[later] - tilts[earlier]);
+            }
+            later = earlier;
+        }
+        return tilts[later];
+    }
+}
@@ -0,0 +1,193 @@
+package ch.epfl.droneproject.module;
+
+import android.os.Debug;
+import android.util.Log;
+
+import org.bytedeco.javacpp.Pointer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * NativeArena.java
+ * @author blchatel
+ *
+ * Owner of the native memory of a vision pipeline. The stages allocate their scratch images (and
+ * register their other native objects) once, through the arena, and never release them themselves:
+ * the arena releases everything at once when the pipeline stops (see release), or a single object
+ * when its owner explicitly replaces it (see free). Nothing is left to the garbage collector.
+ *
+ * The arena accounts the live bytes of each stage and watches the native heap for a leak. The bytes
+ * of the arena cannot leak, and Pointer.totalBytes does not count the data of the images and the
+ * Mats allocated by OpenCV (cvCreateImage, IplImage.create, Mat), the leaks to catch: the allocated
+ * native heap (Debug.getNativeHeapAllocatedSize) does. It is the heap of the whole process, hence
+ * the watch only looks at the steady trend: the smallest heap of each window of WINDOW_FRAMES frames
+ * is compared to the one of the previous window (the minimum ignores transient allocations, e.g. a
+ * decoder buffer). A heap growing by more than MIN_GROWTH on LEAK_WINDOWS successive windows is a
+ * leak, whereas a single step (e.g. a new face model swapped in) is forgiven.
+ * A leak fails fast: sample returns true and the vision stage stops (see AutoPilotModule), before
+ * the leak exhausts the memory in flight. The piloting loop keeps running.
+ * The accounting is logged at the end of each window.
+ * Registering is thread safe (the face thread allocates its own stage), sample is called by one thread.
+ * @see AutoPilotModule
+ */
+class NativeArena {
+
+    private static final String TAG = "NativeArena";
+
+    static final int STAGE_FRAME = 0;
+    static final int STAGE_FACE = 1;
+    private static final String[] STAGE_NAMES = {"frame", "face"};
+
+    // Frames of a window of the leak watch, and successive growing windows making a leak
+    private static final int WINDOW_FRAMES = 300;
+    private static final int LEAK_WINDOWS = 6;
+    private static final long MIN_GROWTH = 256 * 1024;
+
+    // The live native objects, their stage and their size
+    private final List<Pointer> objects;
+    private final List<Integer> stages;
+    private final List<Long> sizes;
+    private final long[] stageBytes;
+
+    private int frames;
+    private long windowMin, previousMin, baseline;
+    private int growingWindows;
+
+    NativeArena() {
+        objects = new ArrayList<>();
+        stages = new ArrayList<>();
+        sizes = new ArrayList<>();
+        stageBytes = new long[STAGE_NAMES.length];
+        frames = 0;
+        windowMin = Long.MAX_VALUE;
+        previousMin = -1;
+        baseline = -1;
+        growingWindows = 0;
+    }
+
+    /**
+     * Allocate an image owned by the arena
+     * @param stage (int): STAGE_FRAME or STAGE_FACE
+     * @param width (int): image width
+     * @param height (int): image height
+     * @param depth (int): depth of a channel, e.g. IPL_DEPTH_8U
+     * @param channels (int): number of channels
+     * @return (IplImage): the image, released by the arena
+     */
+    IplImage image(int stage, int width, int height, int depth, int channels) {
+        IplImage image = IplImage.create(width, height, depth, channels);
+        return track(stage, image, image.imageSize());
+    }
+
+    /**
+     * Give the ownership of a native object to the arena (e.g. a header, a Mat, a pointer)
+     * @param stage (int): STAGE_FRAME or STAGE_FACE
+     * @param object (Pointer): the native object, deallocated by the arena
+     * @param bytes (long): native bytes owned by the object, 0 for a header on memory of someone else
+     * @return (Pointer): the object
+     */
+    synchronized <P extends Pointer> P track(int stage, P object, long bytes) {
+        objects.add(object);
+        stages.add(stage);
+        sizes.add(bytes);
+        stageBytes[stage] += bytes;
+        return object;
+    }
+
+    /**
+     * Release an object of the arena before the end of the pipeline, e.g. once replaced
+     * @param object (Pointer): an object allocated or tracked by the arena, ignored if null
+     */
+    synchronized void free(Pointer object) {
+        int i = objects.indexOf(object);
+        if (i < 0) {
+            return;
+        }
+        stageBytes[stages.get(i)] -= sizes.get(i);
+        objects.remove(i);
+        stages.remove(i);
+        sizes.remove(i);
+        object.deallocate();
+    }
+
+    /**
+     * Release all the objects, the last allocated first. The objects must not be used any more
+     */
+    synchronized void release() {
+        for (int i = objects.size() - 1; i >= 0; i--) {
+            objects.get(i).deallocate();
+        }
+        objects.clear();
+        stages.clear();
+        sizes.clear();
+        for (int s = 0; s < stageBytes.length; s++) {
+            stageBytes[s] = 0;
+        }
+    }
+
+    /**
+     * @param stage (int): STAGE_FRAME or STAGE_FACE
+     * @return (long): the live bytes of the stage
+     */
+    synchronized long bytes(int stage) {
+        return stageBytes[stage];
+    }
+
+    /**
+     * Measure the native memory of the pipeline, once per frame of the pipeline
+     * @return (boolean): true when a leak is detected, i.e. the native heap kept growing in the
+     * steady state. The pipeline must then stop
+     */
+    boolean sample() {
+        windowMin = Math.min(windowMin, liveBytes());
+        if (++frames < WINDOW_FRAMES) {
+            return false;
+        }
+
+        if (previousMin < 0) {
+            baseline = windowMin;
+        } else if (windowMin - previousMin > MIN_GROWTH) {
+            growingWindows++;
+        } else {
+            growingWindows = 0;
+        }
+        previousMin = windowMin;
+        frames = 0;
+        windowMin = Long.MAX_VALUE;
+
+        if (growingWindows >= LEAK_WINDOWS) {
+            Log.e(TAG, "Native memory leak: " + report());
+            return true;
+        }
+        Log.d(TAG, report());
+        return false;
+    }
+
+    /**
+     * @return (long): the allocated bytes of the native heap, including the OpenCV images and Mats
+     */
+    private static long liveBytes() {
+        return Debug.getNativeHeapAllocatedSize();
+    }
+
+    /**
+     * @return (String): the live bytes of each stage, of JavaCPP, of the native heap and its growth
+     * since the first window
+     */
+    synchronized String report() {
+        StringBuilder report = new StringBuilder();
+        for (int s = 0; s < STAGE_NAMES.length; s++) {
+            report.append(String.format(Locale.US, "%s %d ko, ", STAGE_NAMES[s], stageBytes[s] / 1024));
+        }
+        report.append(String.format(Locale.US, "javacpp %d ko, ", Pointer.totalBytes() / 1024));
+        report.append(String.format(Locale.US, "heap %d ko", liveBytes() / 1024));
+        if (baseline >= 0) {
+            report.append(String.format(Locale.US, ", growth %+d ko", (liveBytes() - baseline) / 1024));
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,278 @@
+package ch.epfl.droneproject.module;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * ParallelFaceDetector.java
+ * @author blchatel
+ *
+ * Face detector sharing the scales of the multi-scale detection between the threads of a ForkJoinPool.
+ * The range of face sizes (from the cascade window to the frame) is cut in one slice per thread, each
+ * slice searched by its own detector (cascades are not thread safe) on the whole frame. Small faces
+ * cost much more than big ones (the image is scanned at a higher resolution), hence the slices are
+ * cut to share the number of scanned windows and not the number of scales. The slices do not overlap:
+ * each scale is scanned by a single slice.
+ * The slices keep the raw hits of the cascade (see FaceDetector#createRaw), and the hits of all the
+ * slices are grouped together as OpenCV groups the hits of a single detector (groupRectangles): a
+ * face whose neighbor hits fall on both sides of a slice border is found as by a single thread.
+ * Once created, process reuses its tasks and buffers on each frame, the workers only allocate the
+ * wrapper of their results (see FaceDetector).
+ * @see FaceDetector
+ */
+class ParallelFaceDetector extends FaceDetector {
+
+    // Relative difference of the sides of two hits of the same face, as OpenCV GROUP_EPS
+    private static final double GROUP_EPS = 0.2;
+
+    private final ForkJoinPool pool;
+    private final FaceDetector[] workers;
+    private final SliceTask[] slices;
+    private final RecursiveAction detectAll;
+
+    // Frame size of the current slices
+    private int width, height;
+    private IplImage image;
+
+    // All the hits of the slices, the group of each hit, and the sums of the sides of each group
+    private final DetectionBuffer candidates;
+    private final int[] labels;
+    private final int[] groupCounts, groupX, groupY, groupW, groupH;
+
+    /**
+     * Default constructor: load one detector per thread of the pool
+     * @param backend (Backend): the detection algorithm
+     * @param pool (ForkJoinPool): the pool running the detection
+     */
+    ParallelFaceDetector(Backend backend, ForkJoinPool pool) {
+        super(backend);
+        this.pool = pool;
+
+        int n = pool.getParallelism();
+        workers = new FaceDetector[n];
+        slices = new SliceTask[n];
+        for (int i = 0; i < n; i++) {
+            workers[i] = FaceDetector.createRaw(backend);
+            slices[i] = new SliceTask(workers[i]);
+        }
+        detectAll = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(slices);
+            }
+        };
+
+        int hits = n * MAX_HITS;
+        candidates = new DetectionBuffer(hits);
+        labels = new int[hits];
+        groupCounts = new int[hits];
+        groupX = new int[hits];
+        groupY = new int[hits];
+        groupW = new int[hits];
+        groupH = new int[hits];
+        width = 0;
+        height = 0;
+    }
+
+    /**
+     * Cut the face sizes in one slice per worker. The number of windows scanned for a face side s is
+     * proportional to 1 / s^2, hence the slice borders s_k are such that 1 / s_k^2 are evenly spaced
+     */
+    private void cutSlices() {
+        double min = Math.max(minFaceSize, backend.windowSize());
+        double max = maxFaceSize > 0 ? maxFaceSize : Math.min(width, height);
+        double invMin = 1 / (min * min);
+        double invMax = 1 / (max * max);
+
+        int n = workers.length;
+        int from = (int) min;
+        for (int k = 0; k < n; k++) {
+            double inv = invMin - (k + 1) * (invMin - invMax) / n;
+            int to = (k == n - 1) ? (int) max : (int) Math.round(1 / Math.sqrt(inv));
+            // The bounds are inclusive: a scale at the border belongs to the next slice only
+            workers[k].setSizeRange(from, k == n - 1 ? to : Math.max(from, to - 1));
+            from = Math.max(from, to);
+        }
+    }
+
+    @Override
+    void setSizeRange(int min, int max) {
+        super.setSizeRange(min, max);
+        // Cut again on next frame
+        width = 0;
+    }
+
+    @Override
+    void setScaleStep(double scaleStep) {
+        super.setScaleStep(scaleStep);
+        for (FaceDetector worker : workers) {
+            worker.setScaleStep(scaleStep);
+        }
+        width = 0;
+    }
+
+    @Override
+    void setFindAll(boolean findAll) {
+        super.setFindAll(findAll);
+        for (FaceDetector worker : workers) {
+            worker.setFindAll(findAll);
+        }
+    }
+
+    @Override
+    void process(IplImage grayImage) {
+        if (grayImage.width() != width || grayImage.height() != height) {
+            width = grayImage.width();
+            height = grayImage.height();
+            cutSlices();
+        }
+
+        image = grayImage;
+        for (SliceTask slice : slices) {
+            slice.reinitialize();
+        }
+        detectAll.reinitialize();
+        pool.invoke(detectAll);
+
+        candidates.clear();
+        for (FaceDetector worker : workers) {
+            DetectionBuffer faces = worker.getFaces();
+            for (int i = 0; i < faces.size(); i++) {
+                candidates.add(faces.x(i), faces.y(i), faces.width(i), faces.height(i), faces.score(i));
+            }
+        }
+        group();
+        biggestFirst();
+    }
+
+    /**
+     * Group the hits of all the slices as cv::groupRectangles: the similar hits are partitioned in
+     * groups, a group with more than minNeighbors hits is a face (the mean of its hits, scored with
+     * its number of hits) unless it lies inside a stronger face
+     */
+    private void group() {
+        mFaces.clear();
+        int n = candidates.size();
+
+        // Partition: union find of the similar hits, each group labeled by its root
+        for (int i = 0; i < n; i++) {
+            labels[i] = i;
+        }
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                if (similar(i, j)) {
+                    int a = root(i), b = root(j);
+                    if (a != b) {
+                        labels[b] = a;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            groupCounts[i] = 0;
+            groupX[i] = 0;
+            groupY[i] = 0;
+            groupW[i] = 0;
+            groupH[i] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            int g = root(i);
+            groupCounts[g]++;
+            groupX[g] += candidates.x(i);
+            groupY[g] += candidates.y(i);
+            groupW[g] += candidates.width(i);
+            groupH[g] += candidates.height(i);
+        }
+        // Mean hit of each group
+        for (int g = 0; g < n; g++) {
+            int count = groupCounts[g];
+            if (count > 0) {
+                groupX[g] = (int) Math.round((double) groupX[g] / count);
+                groupY[g] = (int) Math.round((double) groupY[g] / count);
+                groupW[g] = (int) Math.round((double) groupW[g] / count);
+                groupH[g] = (int) Math.round((double) groupH[g] / count);
+            }
+        }
+
+        for (int g = 0; g < n; g++) {
+            int count = groupCounts[g];
+            if (count <= minNeighbors || insideStrongerGroup(g, n)) {
+                continue;
+            }
+            if (!mFaces.add(groupX[g], groupY[g], groupW[g], groupH[g], count)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return (int): the label of the group of a hit, with path halving
+     */
+    private int root(int i) {
+        while (labels[i] != i) {
+            labels[i] = labels[labels[i]];
+            i = labels[i];
+        }
+        return i;
+    }
+
+    /**
+     * @return (boolean): true if two hits are of the same face, as cv::SimilarRects
+     */
+    private boolean similar(int a, int b) {
+        double delta = GROUP_EPS * (Math.min(candidates.width(a), candidates.width(b))
+                + Math.min(candidates.height(a), candidates.height(b))) * 0.5;
+        return Math.abs(candidates.x(a) - candidates.x(b)) <= delta
+                && Math.abs(candidates.y(a) - candidates.y(b)) <= delta
+                && Math.abs(candidates.x(a) + candidates.width(a) - candidates.x(b) - candidates.width(b)) <= delta
+                && Math.abs(candidates.y(a) + candidates.height(a) - candidates.y(b) - candidates.height(b)) <= delta;
+    }
+
+    /**
+     * @return (boolean): true if a group lies inside another face with more hits, as in cv::groupRectangles
+     */
+    private boolean insideStrongerGroup(int g, int n) {
+        int count = groupCounts[g];
+        for (int o = 0; o < n; o++) {
+            int other = groupCounts[o];
+            if (o == g || other <= minNeighbors) {
+                continue;
+            }
+            int dx = (int) Math.round(groupW[o] * GROUP_EPS);
+            int dy = (int) Math.round(groupH[o] * GROUP_EPS);
+            if (groupX[g] >= groupX[o] - dx && groupY[g] >= groupY[o] - dy
+                    && groupX[g] + groupW[g] <= groupX[o] + groupW[o] + dx
+                    && groupY[g] + groupH[g] <= groupY[o] + groupH[o] + dy
+                    && (other > Math.max(3, count) || count < 3)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    void destroy() {
+        for (FaceDetector worker : workers) {
+            worker.destroy();
+        }
+    }
+
+    /**
+     * Detection of the faces of one slice of sizes on the current image
+     */
+    private class SliceTask extends RecursiveAction {
+
+        private final FaceDetector worker;
+
+        SliceTask(FaceDetector worker) {
+            this.worker = worker;
+        }
+
+        @Override
+        protected void compute() {
+            worker.process(image);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package ch.epfl.droneproject.module;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * PilotingLoop.java
+ * @author blchatel
+ *
+ * Fixed rate control thread sending the piloting commands (PCMD) of the autopilot, and aggregator
+ * of these commands.
+ * Two sources write the command, each in its own field:
+ *  - the procedures of the missions update single axes (see setYaw, setPitch, setRoll, setGaz,
+ *    setFlag), kept until they change them again;
+ *  - the visual servo of the vision thread publishes its yaw on each frame (see setServoYaw). It
+ *    expires: a servo yaw older than SETPOINT_TIMEOUT (e.g. the vision is stalled) is ignored, and
+ *    releaseServo removes it, without touching the axes of the procedures.
+ * The loop ticks every RATE_HZ on a high priority thread and merges both fields, the servo yaw
+ * replacing the yaw of the procedures while it is fresh. The merged command is sent in one setPCDM
+ * (one connection check, one JNI call) only if it changed since the last PCMD sent: the ARController
+ * keeps sending its last PCMD to the drone, hence the command cadence does not depend on the vision
+ * frame rate, and repeated values (e.g. fixYaw on each frame) cost nothing. The sent and suppressed
+ * commands are counted (see counters).
+ * The loop runs while the autopilot is engaged, i.e. while the application pilots the drone, not
+ * for the lifetime of the vision: the procedures are sent whether the video is shown or not. No
+ * thread runs while the operator pilots, nor without a drone.
+ * Each field is a single long written and read atomically (no torn command, no lock shared with the
+ * vision), the axis updates use compare-and-set.
+ * @see SkyControllerExtensionModule#setPCDM
+ */
+class PilotingLoop {
+
+    private static final String TAG = "PilotingLoop";
+
+    static final int RATE_HZ = 40;
+    private static final long PERIOD_NS = 1000000000L / RATE_HZ;
+    private static final long SETPOINT_TIMEOUT_MS = 500;
+
+    // Packed axes: flag, roll, pitch, yaw, gaz (a byte each)
+    private static final int FLAG_SHIFT = 0;
+    private static final int ROLL_SHIFT = 8;
+    private static final int PITCH_SHIFT = 16;
+    private static final int YAW_SHIFT = 24;
+    private static final int GAZ_SHIFT = 32;
+    private static final long YAW_MASK = 0xFFL << YAW_SHIFT;
+    // Packed servo yaw: yaw (a byte), active bit and time of the yaw in ms
+    private static final long SERVO_ACTIVE = 1L << 8;
+    private static final int SERVO_TIME_SHIFT = 9;
+
+    private final SkyControllerExtensionModule mSKEModule;
+    // Axes of the procedures, and yaw of the servo
+    private final AtomicLong axes;
+    private final AtomicLong servo;
+    // Commands sent, and updates which did not change the command
+    private final AtomicLong sent, suppressed;
+
+    private Thread thread;
+    private volatile boolean running;
+    // Sequence number of the sent commands (8 bits in the PCMD)
+    private int sequence;
+    private volatile long lateTicks;
+
+    /**
+     * Default constructor
+     * @param skeModule (SkyControllerExtensionModule): the module sending the commands
+     */
+    PilotingLoop(SkyControllerExtensionModule skeModule) {
+        this.mSKEModule = skeModule;
+        this.axes = new AtomicLong(0);
+        this.servo = new AtomicLong(0);
+        this.sent = new AtomicLong(0);
+        this.suppressed = new AtomicLong(0);
+    }
+
+    /**
+     * Set the yaw of the visual servo, sent on the next ticks until it expires. Called by the vision
+     * thread, does not block
+     * @param yaw (byte): yaw rotation speed as signed percentage [-100, 100]
+     */
+    void setServoYaw(byte yaw) {
+        long packed = (yaw & 0xFFL) | SERVO_ACTIVE | now() << SERVO_TIME_SHIFT;
+        // The time is refreshed even if the yaw is the same
+        long previous = servo.getAndSet(packed);
+        if ((previous & SERVO_ACTIVE) != 0 && (byte) previous == yaw) {
+            suppressed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stop the yaw of the servo. The axes of the procedures are kept
+     */
+    void releaseServo() {
+        servo.set(0);
+    }
+
+    /**
+     * @param yaw (byte): yaw rotation speed as signed percentage [-100, 100], kept until changed
+     */
+    void setYaw(byte yaw) {
+        setAxis(YAW_SHIFT, yaw);
+    }
+
+    /**
+     * @param pitch (byte): pitch angle as signed percentage [-100, 100], kept until changed
+     */
+    void setPitch(byte pitch) {
+        setAxis(PITCH_SHIFT, pitch);
+    }
+
+    /**
+     * @param roll (byte): roll angle as signed percentage [-100, 100], kept until changed
+     */
+    void setRoll(byte roll) {
+        setAxis(ROLL_SHIFT, roll);
+    }
+
+    /**
+     * @param gaz (byte): vertical speed as signed percentage [-100, 100], kept until changed
+     */
+    void setGaz(byte gaz) {
+        setAxis(GAZ_SHIFT, gaz);
+    }
+
+    /**
+     * @param flag (byte): 1 if the roll and pitch values should be taken in consideration, 0 otherwise
+     */
+    void setFlag(byte flag) {
+        setAxis(FLAG_SHIFT, flag);
+    }
+
+    /**
+     * Change one axis of the procedures, the others are kept
+     */
+    private void setAxis(int shift, byte value) {
+        long mask = 0xFFL << shift;
+        while (true) {
+            long current = axes.get();
+            long next = (current & ~mask) | (value & 0xFFL) << shift;
+            if (next == current) {
+                suppressed.incrementAndGet();
+                return;
+            }
+            if (axes.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stop piloting: a hover command is sent on the next tick, then nothing until the next command
+     */
+    void release() {
+        axes.set(0);
+        servo.set(0);
+    }
+
+    /**
+     * @return (String): the numbers of commands sent and of updates suppressed, and the late ticks
+     */
+    String counters() {
+        return "PCMD sent " + sent.get() + ", suppressed " + suppressed.get() + ", late ticks " + lateTicks;
+    }
+
+    /**
+     * Start the control thread
+     */
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        sequence = 0;
+        lateTicks = 0;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+                loop();
+            }
+        }, "PilotingLoop");
+        thread.start();
+    }
+
+    /**
+     * Stop the control thread, once its last command (a hover if it was piloting) is sent
+     */
+    synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        release();
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        thread = null;
+    }
+
+    private void loop() {
+        // Axes of the last PCMD sent
+        long last = 0;
+        long next = System.nanoTime();
+        do {
+            long command = merge();
+            if (command != last) {
+                send(command);
+                last = command;
+            }
+
+            // Next tick at a fixed rate, the missed ticks are skipped
+            next += PERIOD_NS;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            } else {
+                lateTicks++;
+                next = System.nanoTime();
+            }
+        } while (running || last != merge());
+        Log.i(TAG, "Piloting loop stopped, " + counters());
+    }
+
+    /**
+     * @return (long): the axes of the procedures, with the yaw of the servo while it is fresh
+     */
+    private long merge() {
+        long command = axes.get();
+        long yaw = servo.get();
+        if ((yaw & SERVO_ACTIVE) != 0 && now() - (yaw >>> SERVO_TIME_SHIFT) <= SETPOINT_TIMEOUT_MS) {
+            command = (command & ~YAW_MASK) | (yaw & 0xFFL) << YAW_SHIFT;
+        }
+        return command;
+    }
+
+    /**
+     * Send one PCMD of packed axes
+     */
+    private void send(long axes) {
+        int timestampAndSeqNum = (int) (now() & 0xFFFFFF) | (sequence & 0xFF) << 24;
+        sequence++;
+        sent.incrementAndGet();
+        mSKEModule.setPCDM((byte) (axes >> FLAG_SHIFT), (byte) (axes >> ROLL_SHIFT), (byte) (axes >> PITCH_SHIFT),
+                (byte) (axes >> YAW_SHIFT), (byte) (axes >> GAZ_SHIFT), timestampAndSeqNum);
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
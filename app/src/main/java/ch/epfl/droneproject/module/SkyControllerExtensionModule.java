@@ -17,12 +17,19 @@ import ch.epfl.droneproject.drone.ConfigDrone;
  *
  * The class is an interface between my application and the Parrot SDK. It allow to send any command
  * to the drone. It is working as an extension for the SkyController2
+ * The commands are only sent while the extension (the drone behind the SkyController2) is running.
+ * Its state is cached from the state callbacks (see setExtensionState) rather than asked to the
+ * device controller, a JNI call, before each command.
  * @see ch.epfl.droneproject.drone.SkyControllerDrone
  */
 public class SkyControllerExtensionModule {
 
     private Context mContext;
     private ARDeviceController mDeviceController;
+    // Last configuration sent to the drone
+    private ConfigDrone mConfig;
+    // Cached state of the extension, written by the state callback thread, read by the commands
+    private volatile boolean mExtensionRunning;
 
     /**
      * Default SkyController 2 Extension controller
@@ -32,12 +39,37 @@ public class SkyControllerExtensionModule {
     public SkyControllerExtensionModule(Context context, ARDeviceController deviceController) {
         this.mContext = context;
         this.mDeviceController = deviceController;
+        this.mConfig = ConfigDrone.DFAULT_DRONE_CONFIG;
+        if (deviceController != null) {
+            setExtensionState(deviceController.getExtensionState());
+        }
+    }
+
+    /**
+     * Update the cached state of the extension. Called on each extension state change
+     * @param state (ARCONTROLLER_DEVICE_STATE_ENUM): the new state of the extension
+     */
+    public void setExtensionState(ARCONTROLLER_DEVICE_STATE_ENUM state) {
+        mExtensionRunning = ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING.equals(state);
+    }
+
+    /**
+     * @return (boolean): true if the commands can be sent, a memory read
+     */
+    private boolean isExtensionRunning() {
+        return mExtensionRunning && mDeviceController != null;
+    }
+
+    /**
+     * @return (ConfigDrone): the last configuration sent to the drone, the default one if none
+     */
+    public ConfigDrone getDroneConfig() {
+        return mConfig;
     }
 
     public void setDroneConfig(ConfigDrone config){
 
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+        if (isExtensionRunning()) {
 
             mDeviceController.getFeatureARDrone3().sendPilotingSettingsMaxAltitude(config.getMaxAlt());
             mDeviceController.getFeatureARDrone3().sendPilotingSettingsMaxDistance(config.getMaxDistance());
@@ -58,6 +90,7 @@ public class SkyControllerExtensionModule {
             mDeviceController.getFeatureARDrone3().sendSpeedSettingsMaxRotationSpeed(config.getMaxRS());
 
             mDeviceController.getFeatureARDrone3().sendSpeedSettingsHullProtection(config.getHasHullProtection());
+            mConfig = config;
 
             DroneApplication.pushInfoMessage("Config set to "+config.getConfigName());
         }
@@ -74,8 +107,7 @@ public class SkyControllerExtensionModule {
      * The better way of trim the drone is using Flight Pro app !
      */
     public void flatTrim(){
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+        if (isExtensionRunning()) {
 
             mDeviceController.getFeatureARDrone3().sendPilotingFlatTrim();
             DroneApplication.pushInfoMessage("Trim Flat");
@@ -88,8 +120,7 @@ public class SkyControllerExtensionModule {
      * @param source (ARCOMMANDS_SKYCONTROLLER_COPILOTING_SETPILOTINGSOURCE_SOURCE_ENUM)
      */
     public void setController(ARCOMMANDS_SKYCONTROLLER_COPILOTING_SETPILOTINGSOURCE_SOURCE_ENUM source){
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+        if (isExtensionRunning()) {
             mDeviceController.getFeatureSkyController().sendCoPilotingSetPilotingSource(source);
         }
     }
@@ -103,8 +134,7 @@ public class SkyControllerExtensionModule {
      */
     public void grabAxis(int axis){
 
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+        if (isExtensionRunning()) {
             mDeviceController.getFeatureMapper().sendGrab(0, axis);
         }
     }
@@ -144,8 +174,7 @@ public class SkyControllerExtensionModule {
      * Event SpeedChanged, AttitudeChanged and PositionChanged (only if gps of the drone has fixed) are triggered.
      */
     public void setPCDM(byte flag, byte roll, byte pitch, byte yaw, byte gaz, int timestampAndSeqNum){
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+        if (isExtensionRunning()) {
             mDeviceController.getFeatureARDrone3().setPilotingPCMD(flag, roll, pitch, yaw, gaz, timestampAndSeqNum);
         }
     }
@@ -156,8 +185,7 @@ public class SkyControllerExtensionModule {
      * @param pitch value in percentage from -100 to 100
      */
     public void setPitch(byte pitch) {
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING)))  {
+        if (isExtensionRunning()) {
             mDeviceController.getFeatureARDrone3().setPilotingPCMDPitch(pitch);
         }
     }
@@ -168,22 +196,19 @@ public class SkyControllerExtensionModule {
      * @param roll value in percentage from -100 to 100
      */
     public void setRoll(byte roll) {
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING)))  {
+        if (isExtensionRunning()) {
             mDeviceController.getFeatureARDrone3().setPilotingPCMDRoll(roll);
         }
     }
 
     public void setYaw(byte yaw) {
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING)))  {
+        if (isExtensionRunning()) {
             mDeviceController.getFeatureARDrone3().setPilotingPCMDYaw(yaw);
         }
     }
 
     public void setGaz(byte gaz) {
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING)))  {
+        if (isExtensionRunning()) {
             mDeviceController.getFeatureARDrone3().setPilotingPCMDGaz(gaz);
         }
     }
@@ -193,8 +218,7 @@ public class SkyControllerExtensionModule {
      * @param flag 1 if the pitch and roll values should be used, 0 otherwise
      */
     public void setFlag(byte flag) {
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING)))  {
+        if (isExtensionRunning()) {
             mDeviceController.getFeatureARDrone3().setPilotingPCMDFlag(flag);
         }
     }
@@ -208,8 +232,7 @@ public class SkyControllerExtensionModule {
      * Then, event FlyingState is triggered.
      */
     public void takeOff() {
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+        if (isExtensionRunning()) {
             mDeviceController.getFeatureARDrone3().sendPilotingTakeOff();
         }
     }
@@ -223,8 +246,7 @@ public class SkyControllerExtensionModule {
      * Then, event FlyingState is triggered.
      */
     public void land() {
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+        if (isExtensionRunning()) {
             mDeviceController.getFeatureARDrone3().sendPilotingLanding();
         }
     }
@@ -239,8 +261,7 @@ public class SkyControllerExtensionModule {
      * Then, event FlyingState is triggered.
      */
     public void emergency() {
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+        if (isExtensionRunning()) {
             mDeviceController.getFeatureARDrone3().sendPilotingEmergency();
             DroneApplication.pushInfoMessage("Emergency");
         }
@@ -261,8 +282,7 @@ public class SkyControllerExtensionModule {
      * do it as soon as it is possible.
      */
     public void goHome(byte start){
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+        if (isExtensionRunning()) {
             mDeviceController.getFeatureARDrone3().sendPilotingNavigateHome(start);
             DroneApplication.pushInfoMessage("Go Home");
         }
@@ -284,8 +304,7 @@ public class SkyControllerExtensionModule {
      * offsets it managed to do before this new command and the value of error set to interrupted.
      */
     public void moveBy(float dX, float dY, float dZ, float dPsi) {
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+        if (isExtensionRunning()) {
             mDeviceController.getFeatureARDrone3().sendPilotingMoveBy(dX, dY, dZ, dPsi);
         }
     }
@@ -303,8 +322,7 @@ public class SkyControllerExtensionModule {
      * The drone will make a flip if it has enough battery.
      */
     public void makeAFlip(ARCOMMANDS_ARDRONE3_ANIMATIONS_FLIP_DIRECTION_ENUM direction){
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+        if (isExtensionRunning()) {
             mDeviceController.getFeatureARDrone3().sendAnimationsFlip(direction);
         }
     }
@@ -326,8 +344,7 @@ public class SkyControllerExtensionModule {
      */
     public void startFlightPlan(FlightPlanerModule fpm){
 
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+        if (isExtensionRunning()) {
             fpm.getMavlink().transmitMavlinkFile(mDeviceController.getFeatureCommon());
             DroneApplication.pushInfoMessage("Start FPL");
         }
@@ -344,8 +361,7 @@ public class SkyControllerExtensionModule {
      * (should be paused if everything went well).
      */
     public void pauseFlightPlan(){
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+        if (isExtensionRunning()) {
             mDeviceController.getFeatureCommon().sendMavlinkPause();
             DroneApplication.pushInfoMessage("Pause FPL");
         }
@@ -360,8 +376,7 @@ public class SkyControllerExtensionModule {
      * triggered with param state set to the current state of the FlightPlan (should be stopped if everything went well).
      */
     public void stopFlightPlan(){
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+        if (isExtensionRunning()) {
             mDeviceController.getFeatureCommon().sendMavlinkStop();
             DroneApplication.pushInfoMessage("Stop FPL");
         }
@@ -384,8 +399,7 @@ public class SkyControllerExtensionModule {
      * Then, event CameraOrientationV2 is triggered.
      */
     public void cameraOrientation(float tilt, float pan){
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+        if (isExtensionRunning()) {
             mDeviceController.getFeatureARDrone3().sendCameraOrientationV2(tilt, pan);
         }
     }
@@ -406,8 +420,7 @@ public class SkyControllerExtensionModule {
      * Then, event CameraOrientationV2 is triggered.
      */
     public void cameraVelocity(float tilt, float pan){
-        if ((mDeviceController != null) &&
-                (mDeviceController.getExtensionState().equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+        if (isExtensionRunning()) {
             mDeviceController.getFeatureARDrone3().sendCameraVelocity(tilt, pan);
         }
     }
@@ -0,0 +1,156 @@
+package ch.epfl.droneproject.module;
+
+/**
+ * TargetTracker.java
+ * @author blchatel
+ *
+ * Alpha-beta filter estimating the position, velocity and size of the tracked target in the frame.
+ * The target is predicted on every frame (see predict) and corrected each time a detector finds it
+ * (see correct). Between two detections the estimate keeps moving with the last velocity, hence:
+ *  - the control gets a smooth estimate on every frame even if detectors do not run on every frame
+ *  - a short occlusion (up to maxCoast frames) does not drop the track
+ * Positions are in pixels and velocities in pixels per frame. Time is counted with frame sequence numbers.
+ * @see AutoPilotModule
+ */
+class TargetTracker {
+
+    // Gains of the filter: position, velocity and size
+    private static final double ALPHA = 0.6;
+    private static final double BETA = 0.2;
+    private static final double SIZE_ALPHA = 0.4;
+    // Number of corrections in a row (i.e. at most detectionPeriod frames apart) before the track is steady
+    private static final int STEADY_HITS = 3;
+
+    private final int maxCoast;
+    private int detectionPeriod;
+
+    private double x, y, vx, vy, w, h;
+    // Frame of the current estimate and frame of the last correction
+    private long sequence;
+    private long lastCorrection;
+    private int hits;
+
+    /**
+     * Default constructor
+     * @param maxCoast (int): number of frames the target can be predicted without being detected
+     * @param detectionPeriod (int): number of frames between two detections while the track is steady
+     */
+    TargetTracker(int maxCoast, int detectionPeriod) {
+        this.maxCoast = maxCoast;
+        this.detectionPeriod = detectionPeriod;
+        reset(0, 0);
+    }
+
+    /**
+     * Start a new track at a given point (e.g. the point touched by the user) without size nor velocity
+     * @param x (double): x of the target center
+     * @param y (double): y of the target center
+     */
+    void reset(double x, double y) {
+        this.x = x;
+        this.y = y;
+        this.vx = 0;
+        this.vy = 0;
+        this.w = 0;
+        this.h = 0;
+        this.sequence = -1;
+        this.lastCorrection = -1;
+        this.hits = 0;
+    }
+
+    /**
+     * Move the estimate to the given frame using the current velocity
+     * @param frameSequence (long): sequence number of the new frame
+     */
+    void predict(long frameSequence) {
+        if (sequence < 0) {
+            lastCorrection = frameSequence;
+        } else {
+            long dt = frameSequence - sequence;
+            x += vx * dt;
+            y += vy * dt;
+        }
+        sequence = frameSequence;
+    }
+
+    /**
+     * Correct the estimate of the current frame with a detection
+     * @param mx (double): x of the detected target center
+     * @param my (double): y of the detected target center
+     * @param mw (double): width of the detected target
+     * @param mh (double): height of the detected target
+     */
+    void correct(double mx, double my, double mw, double mh) {
+        boolean consecutive = sequence - lastCorrection <= detectionPeriod;
+        if (hits == 0) {
+            x = mx;
+            y = my;
+            w = mw;
+            h = mh;
+        } else {
+            long dt = Math.max(1, sequence - lastCorrection);
+            double rx = mx - x;
+            double ry = my - y;
+            x += ALPHA * rx;
+            y += ALPHA * ry;
+            vx += BETA * rx / dt;
+            vy += BETA * ry / dt;
+            w += SIZE_ALPHA * (mw - w);
+            h += SIZE_ALPHA * (mh - h);
+        }
+        hits = consecutive ? hits + 1 : 1;
+        lastCorrection = sequence;
+    }
+
+    /**
+     * @param detectionPeriod (int): number of frames between two detections while the track is steady
+     */
+    void setDetectionPeriod(int detectionPeriod) {
+        this.detectionPeriod = detectionPeriod;
+    }
+
+    /**
+     * @return (boolean): true if the target has been detected in the last maxCoast frames
+     */
+    boolean isTracking() {
+        return sequence - lastCorrection <= maxCoast;
+    }
+
+    /**
+     * @return (boolean): true if the target has been detected in a row on the last frames, i.e.
+     * detectors can be skipped until detectionPeriod frames after the last detection
+     */
+    boolean isSteady() {
+        return hits >= STEADY_HITS && sequence - lastCorrection < detectionPeriod;
+    }
+
+    int x() {
+        return (int) Math.round(x);
+    }
+
+    int y() {
+        return (int) Math.round(y);
+    }
+
+    int width() {
+        return (int) Math.round(w);
+    }
+
+    int height() {
+        return (int) Math.round(h);
+    }
+
+    /**
+     * @return (int): predicted x of the target center on the next frame
+     */
+    int nextX() {
+        return (int) Math.round(x + vx);
+    }
+
+    /**
+     * @return (int): predicted y of the target center on the next frame
+     */
+    int nextY() {
+        return (int) Math.round(y + vy);
+    }
+}
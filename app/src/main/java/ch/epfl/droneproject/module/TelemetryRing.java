@@ -0,0 +1,230 @@
+package ch.epfl.droneproject.module;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * TelemetryRing.java
+ * @author blchatel
+ *
+ * History of the attitude and the position of the drone, for the autopilot and the map.
+ * The ATTITUDECHANGED and POSITIONCHANGED events are written by the callback thread of the drone in
+ * a ring of CAPACITY rows of primitive columns (time, roll, pitch, yaw, lat, lon, alt). An event
+ * writes a whole row, the columns of the other event are carried from the previous row, hence any
+ * row is a complete state of the drone at its time. Recording allocates nothing.
+ *
+ * There is a single writer and no lock, as a sequence lock: the writer claims a row (volatile count
+ * of claimed rows), fills it, then publishes it (volatile count of written rows). A reader copies the
+ * rows it needs, then checks with the claimed count that the writer did not start to overwrite them
+ * meanwhile, and copies them again if it did. The columns are atomic arrays (the floats and doubles
+ * as their raw bits): their reads are volatile, hence they cannot be reordered after the check, as
+ * plain reads could.
+ * The queries fill a Sample of the caller, they allocate nothing either.
+ * @see AutoPilotModule
+ */
+public class TelemetryRing {
+
+    // Latitude and longitude sent by the drone while its position is unknown (no gps fix)
+    public static final double UNKNOWN_POSITION = 500;
+
+    // Rows of the ring, a power of two. The drone sends its attitude at 5 Hz and more
+    private static final int CAPACITY = 256;
+    private static final int MASK = CAPACITY - 1;
+
+    // Columns: times, then float bits of the attitude and double bits of the position
+    private final AtomicLongArray times;
+    private final AtomicIntegerArray rolls, pitches, yaws;
+    private final AtomicLongArray lats, lons, alts;
+    // Rows claimed by the writer, and rows written since the beginning (the last row is
+    // (written - 1) & MASK). Row r may be being overwritten once claimed > r + CAPACITY
+    private volatile long claimed;
+    private volatile long written;
+
+    // Last values of each event, carried in the rows of the other one. Writer only
+    private float roll, pitch, yaw;
+    private double lat, lon, alt;
+
+    /**
+     * State of the drone at a given time, filled by the queries
+     */
+    public static class Sample {
+        // System.nanoTime() of the state
+        public long ns;
+        // Attitude in radian
+        public float roll, pitch, yaw;
+        // Position in degree and meter, lat and lon are UNKNOWN_POSITION if unknown
+        public double lat, lon, alt;
+    }
+
+    TelemetryRing() {
+        times = new AtomicLongArray(CAPACITY);
+        rolls = new AtomicIntegerArray(CAPACITY);
+        pitches = new AtomicIntegerArray(CAPACITY);
+        yaws = new AtomicIntegerArray(CAPACITY);
+        lats = new AtomicLongArray(CAPACITY);
+        lons = new AtomicLongArray(CAPACITY);
+        alts = new AtomicLongArray(CAPACITY);
+        lat = UNKNOWN_POSITION;
+        lon = UNKNOWN_POSITION;
+        claimed = 0;
+        written = 0;
+    }
+
+    /**
+     * Record an ATTITUDECHANGED event. Writer thread only
+     * @param ns (long): System.nanoTime() of the reception
+     * @param roll (float): in radian
+     * @param pitch (float): in radian
+     * @param yaw (float): in radian
+     */
+    void recordAttitude(long ns, float roll, float pitch, float yaw) {
+        this.roll = roll;
+        this.pitch = pitch;
+        this.yaw = yaw;
+        write(ns);
+    }
+
+    /**
+     * Record a POSITIONCHANGED event. Writer thread only
+     * @param ns (long): System.nanoTime() of the reception
+     * @param lat (double): latitude in degree
+     * @param lon (double): longitude in degree
+     * @param alt (double): altitude in meter
+     */
+    void recordPosition(long ns, double lat, double lon, double alt) {
+        this.lat = lat;
+        this.lon = lon;
+        this.alt = alt;
+        write(ns);
+    }
+
+    private void write(long ns) {
+        long row = written;
+        int i = (int) (row & MASK);
+        // Claim the row before overwriting it
+        claimed = row + 1;
+        times.set(i, ns);
+        rolls.set(i, Float.floatToRawIntBits(roll));
+        pitches.set(i, Float.floatToRawIntBits(pitch));
+        yaws.set(i, Float.floatToRawIntBits(yaw));
+        lats.set(i, Double.doubleToRawLongBits(lat));
+        lons.set(i, Double.doubleToRawLongBits(lon));
+        alts.set(i, Double.doubleToRawLongBits(alt));
+        // Publish the row
+        written = row + 1;
+    }
+
+    /**
+     * @param out (Sample): filled with the last state of the drone
+     * @return (boolean): false if nothing was recorded yet
+     */
+    public boolean latest(Sample out) {
+        while (true) {
+            long count = written;
+            if (count == 0) {
+                return false;
+            }
+            copy(count - 1, out);
+            if (valid(count - 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param ns (long): System.nanoTime() of the state
+     * @param out (Sample): filled with the state of the drone at ns, interpolated between the two
+     *            rows around ns, or the oldest row if ns is older than the history
+     * @return (boolean): false if nothing was recorded yet
+     */
+    public boolean at(long ns, Sample out) {
+        while (true) {
+            long count = written;
+            if (count == 0) {
+                return false;
+            }
+            long oldest = Math.max(0, count - CAPACITY);
+            long row = count - 1;
+            while (row > oldest && times.get((int) (row & MASK)) > ns) {
+                row--;
+            }
+            if (row == count - 1 || times.get((int) (row & MASK)) > ns) {
+                // After the last row or before the first one
+                copy(row, out);
+            } else {
+                interpolate(row, ns, out);
+            }
+            if (valid(row)) {
+                out.ns = ns;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return (long): the number of rows recorded since the beginning
+     */
+    public long count() {
+        return written;
+    }
+
+    /**
+     * @return (boolean): true if the row has not been overwritten, i.e. what was read from it is right
+     */
+    private boolean valid(long row) {
+        return claimed - row <= CAPACITY;
+    }
+
+    private void copy(long row, Sample out) {
+        int i = (int) (row & MASK);
+        out.ns = times.get(i);
+        out.roll = Float.intBitsToFloat(rolls.get(i));
+        out.pitch = Float.intBitsToFloat(pitches.get(i));
+        out.yaw = Float.intBitsToFloat(yaws.get(i));
+        out.lat = Double.longBitsToDouble(lats.get(i));
+        out.lon = Double.longBitsToDouble(lons.get(i));
+        out.alt = Double.longBitsToDouble(alts.get(i));
+    }
+
+    /**
+     * Interpolate between a row and the next one
+     */
+    private void interpolate(long row, long ns, Sample out) {
+        int i = (int) (row & MASK);
+        int j = (int) ((row + 1) & MASK);
+        long ti = times.get(i);
+        long span = times.get(j) - ti;
+        float ratio = span > 0 ? (float) (ns - ti) / span : 0;
+        out.roll = lerp(rolls, i, j, ratio);
+        out.pitch = lerp(pitches, i, j, ratio);
+        // The yaw turns the shortest way, through -pi/pi if needed
+        float yawI = Float.intBitsToFloat(yaws.get(i));
+        float turn = Float.intBitsToFloat(yaws.get(j)) - yawI;
+        turn -= (float) (2 * Math.PI * Math.round(turn / (2 * Math.PI)));
+        float interpolated = yawI + ratio * turn;
+        out.yaw = interpolated > Math.PI ? (float) (interpolated - 2 * Math.PI)
+                : interpolated < -Math.PI ? (float) (interpolated + 2 * Math.PI) : interpolated;
+        double latI = Double.longBitsToDouble(lats.get(i));
+        double latJ = Double.longBitsToDouble(lats.get(j));
+        if (latI == UNKNOWN_POSITION || latJ == UNKNOWN_POSITION) {
+            // No interpolation with an unknown position
+            int k = ratio < 0.5f ? i : j;
+            out.lat = Double.longBitsToDouble(lats.get(k));
+            out.lon = Double.longBitsToDouble(lons.get(k));
+        } else {
+            out.lat = latI + ratio * (latJ - latI);
+            out.lon = lerp(lons, i, j, ratio);
+        }
+        out.alt = lerp(alts, i, j, ratio);
+    }
+
+    private static float lerp(AtomicIntegerArray column, int i, int j, float ratio) {
+        float a = Float.intBitsToFloat(column.get(i));
+        return a + ratio * (Float.intBitsToFloat(column.get(j)) - a);
+    }
+
+    private static double lerp(AtomicLongArray column, int i, int j, float ratio) {
+        double a = Double.longBitsToDouble(column.get(i));
+        return a + ratio * (Double.longBitsToDouble(column.get(j)) - a);
+    }
+}
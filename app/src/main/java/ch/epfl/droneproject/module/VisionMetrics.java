@@ -0,0 +1,236 @@
+package ch.epfl.droneproject.module;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * VisionMetrics.java
+ * @author blchatel
+ *
+ * Latency histogram of each stage of the vision pipeline, achieved frame rate and dropped frames.
+ * The pipeline threads record their stages with record, frame and the drop methods: a record is a
+ * few additions in preallocated arrays, nothing is allocated. The histograms have power of two
+ * buckets in microseconds, hence a percentile is known within a factor 2 (its bucket upper bound).
+ * The metrics are read as text by the UI (see text) and appended to a file every DUMP_PERIOD by a
+ * background thread for the analysis after the flight (see startDump).
+ * @see AutoPilotModule
+ */
+class VisionMetrics {
+
+    private static final String TAG = "VisionMetrics";
+
+    static final int STAGE_GRAB = 0;
+    static final int STAGE_BLOB = 1;
+    static final int STAGE_FACE = 2;
+    static final int STAGE_RECOGNIZE = 3;
+    static final int STAGE_CONTROL = 4;
+    static final int STAGE_UI = 5;
+    // Not a stage: age of the frames when their processing starts, since their reception
+    static final int STAGE_AGE = 6;
+    private static final String[] STAGE_NAMES = {"grab", "blob", "face", "recognize", "control", "ui", "age"};
+
+    // Bucket b counts the latencies in [2^(b-1), 2^b[ microseconds, the last one all the bigger ones
+    private static final int BUCKETS = 24;
+    // The frame rate is measured over FPS_WINDOW nanoseconds
+    private static final long FPS_WINDOW = 1000000000L;
+    private static final long DUMP_PERIOD = 10000;
+
+    private final long[][] histograms;
+    private final long[] maxNs;
+    private final Object lock;
+
+    private long framesProcessed, framesDropped, faceFramesDropped;
+    private long windowStart;
+    private int windowFrames;
+    private double fps;
+
+    private Thread dumper;
+
+    VisionMetrics() {
+        histograms = new long[STAGE_NAMES.length][BUCKETS];
+        maxNs = new long[STAGE_NAMES.length];
+        lock = new Object();
+        reset();
+    }
+
+    /**
+     * Forget all the measures, e.g. when the pipeline starts again
+     */
+    void reset() {
+        synchronized (lock) {
+            for (int s = 0; s < STAGE_NAMES.length; s++) {
+                for (int b = 0; b < BUCKETS; b++) {
+                    histograms[s][b] = 0;
+                }
+                maxNs[s] = 0;
+            }
+            framesProcessed = 0;
+            framesDropped = 0;
+            faceFramesDropped = 0;
+            windowStart = 0;
+            windowFrames = 0;
+            fps = 0;
+        }
+    }
+
+    /**
+     * Add a measure of a stage
+     * @param stage (int): one of the STAGE_ constants
+     * @param ns (long): time spent in the stage in nanoseconds
+     */
+    void record(int stage, long ns) {
+        int us = (int) Math.min(ns / 1000, Integer.MAX_VALUE);
+        int bucket = Math.min(32 - Integer.numberOfLeadingZeros(us), BUCKETS - 1);
+        synchronized (lock) {
+            histograms[stage][bucket]++;
+            if (ns > maxNs[stage]) {
+                maxNs[stage] = ns;
+            }
+        }
+    }
+
+    /**
+     * Count a processed frame. Called by the vision thread
+     * @param now (long): System.nanoTime() at the end of the frame
+     */
+    void frame(long now) {
+        synchronized (lock) {
+            framesProcessed++;
+            if (windowStart == 0) {
+                windowStart = now;
+            } else if (now - windowStart >= FPS_WINDOW) {
+                fps = windowFrames * 1e9 / (now - windowStart);
+                windowStart = now;
+                windowFrames = 0;
+            }
+            windowFrames++;
+        }
+    }
+
+    /**
+     * @param count (long): frames decoded but never processed by the vision thread
+     */
+    void dropFrames(long count) {
+        synchronized (lock) {
+            framesDropped += count;
+        }
+    }
+
+    /**
+     * Count a frame not given to the face thread because it was still busy
+     */
+    void dropFaceFrame() {
+        synchronized (lock) {
+            faceFramesDropped++;
+        }
+    }
+
+    /**
+     * @return (String): the frame rate, the dropped frames and a line per stage with its number of
+     * measures, median, 90th and 99th percentiles and maximum in milliseconds
+     */
+    String text() {
+        StringBuilder text = new StringBuilder();
+        synchronized (lock) {
+            text.append(String.format(Locale.US, "%.1f fps, %d frames, dropped %d, face dropped %d",
+                    fps, framesProcessed, framesDropped, faceFramesDropped));
+            for (int s = 0; s < STAGE_NAMES.length; s++) {
+                long count = count(s);
+                if (count == 0) {
+                    continue;
+                }
+                text.append(String.format(Locale.US, "\n%-9s %6d  p50 %6.1f  p90 %6.1f  p99 %6.1f  max %6.1f",
+                        STAGE_NAMES[s], count, percentile(s, count, 0.5), percentile(s, count, 0.9),
+                        percentile(s, count, 0.99), maxNs[s] / 1e6));
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Append the metrics to a file every DUMP_PERIOD, in the background until stopDump
+     * @param file (File): the file, created if needed
+     */
+    void startDump(final File file) {
+        stopDump();
+        dumper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean running = true;
+                while (running) {
+                    try {
+                        Thread.sleep(DUMP_PERIOD);
+                    } catch (InterruptedException e) {
+                        // Dump a last time before stopping
+                        running = false;
+                    }
+                    dump(file);
+                }
+            }
+        }, "MetricsDump");
+        dumper.start();
+    }
+
+    /**
+     * Stop the periodic dump, once the last metrics are written
+     */
+    void stopDump() {
+        if (dumper != null) {
+            dumper.interrupt();
+            try {
+                dumper.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            dumper = null;
+        }
+    }
+
+    private void dump(File file) {
+        Writer writer = null;
+        try {
+            writer = new FileWriter(file, true);
+            writer.write(String.format(Locale.US, "--- %tF %<tT\n", System.currentTimeMillis()));
+            writer.write(text());
+            writer.write('\n');
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to dump the metrics: " + e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private long count(int stage) {
+        long count = 0;
+        for (long c : histograms[stage]) {
+            count += c;
+        }
+        return count;
+    }
+
+    /**
+     * @return (double): upper bound in milliseconds of the bucket of a percentile of a stage
+     */
+    private double percentile(int stage, long count, double ratio) {
+        long rank = (long) Math.ceil(ratio * count);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += histograms[stage][b];
+            if (seen >= rank) {
+                return b == BUCKETS - 1 ? maxNs[stage] / 1e6 : (1L << b) / 1e3;
+            }
+        }
+        return maxNs[stage] / 1e6;
+    }
+}
@@ -0,0 +1,143 @@
+package ch.epfl.droneproject.module;
+
+import ch.epfl.droneproject.drone.ConfigDrone;
+
+/**
+ * VisualServo.java
+ * @author blchatel
+ *
+ * Proportional-derivative controller keeping the followed target in the center of the frame by
+ * turning the drone (yaw) and its camera (tilt).
+ * The pixel error is first converted in an angular error with the horizontal field of view of the
+ * camera (see AutoPilotModule.setCameraInfo), hence the gains depend neither on the resolution nor
+ * on the lens. The frame is older than the command (the video latency), the angles the drone and
+ * its camera turned since the frame are subtracted from the error (see TelemetryRing and
+ * GimbalHistory), so the servo corrects the error of now and does not over-correct while turning.
+ * Then for each axis:
+ *      rate = KP * error + KD * d(error)/dt    [deg/s]
+ * bounded, and zero while the error is within DEAD_BAND (the target is centered enough). The
+ * derivative is smoothed, it damps the oscillations of the proportional term.
+ * The outputs are continuous rates: the yaw as a percentage of the max rotation speed of the drone
+ * (the yaw of a PCMD) and the tilt in deg/s (a camera velocity). They are quantized, hence a steady
+ * target gives the same commands on successive frames.
+ * Not thread safe: used by the vision thread only.
+ * @see AutoPilotModule
+ */
+class VisualServo {
+
+    // Horizontal field of view of the Bebop 2 camera, used until the drone gives its own [deg]
+    private static final float DEFAULT_FOV = 80;
+
+    private static final float KP_YAW = 1.2f;
+    private static final float KD_YAW = 0.15f;
+    private static final float KP_TILT = 1.0f;
+    private static final float KD_TILT = 0.1f;
+
+    // Bounds of the outputs: percentage of the max rotation speed, and deg/s
+    private static final int MAX_YAW = 50;
+    private static final float MAX_TILT_RATE = 20;
+    // Angular error considered as centered [deg]
+    private static final float DEAD_BAND = 1.5f;
+    // Weight of the last measure in the smoothed derivatives
+    private static final float DERIVATIVE_SMOOTHING = 0.3f;
+    // Step of the tilt rate [deg/s]
+    private static final float TILT_QUANTUM = 0.5f;
+
+    private float fov;
+    // Max rotation speed of the drone [deg/s], the scale of the yaw percentage
+    private float maxRotationSpeed;
+    // Last errors [deg], smoothed derivatives [deg/s] and time of the last update (0 if none)
+    private float errorX, errorY;
+    private float derivativeX, derivativeY;
+    private long lastNs;
+
+    private byte yaw;
+    private float tiltRate;
+
+    VisualServo() {
+        fov = DEFAULT_FOV;
+        maxRotationSpeed = ConfigDrone.DFAULT_DRONE_CONFIG.getMaxRS();
+        reset();
+    }
+
+    /**
+     * @param fov (float): horizontal field of view of the camera [deg], ignored if not positive
+     */
+    void setFov(float fov) {
+        if (fov > 0) {
+            this.fov = fov;
+        }
+    }
+
+    /**
+     * Forget the previous errors (e.g. new target, or the servo was stopped) and stop the outputs
+     */
+    void reset() {
+        errorX = 0;
+        errorY = 0;
+        derivativeX = 0;
+        derivativeY = 0;
+        lastNs = 0;
+        yaw = 0;
+        tiltRate = 0;
+    }
+
+    /**
+     * Compute the rates for a new position of the target
+     * @param now (long): System.nanoTime() of the command
+     * @param dx (float): target x minus frame center x [pixel], positive if the target is on the right
+     * @param dy (float): target y minus frame center y [pixel], positive if the target is below
+     * @param width (int): frame width [pixel]
+     * @param yawSince (float): angle the drone turned clockwise since the frame [deg]
+     * @param tiltSince (float): angle the camera tilted up since the frame [deg]
+     */
+    void update(long now, float dx, float dy, int width, float yawSince, float tiltSince) {
+        // Focal length in pixels, the pixels are square
+        double focal = width / 2.0 / Math.tan(Math.toRadians(fov / 2));
+        // Reprojected to now: turning right moves the target left, tilting up moves it down
+        float ex = (float) Math.toDegrees(Math.atan(dx / focal)) - yawSince;
+        float ey = (float) Math.toDegrees(Math.atan(dy / focal)) + tiltSince;
+
+        if (lastNs != 0 && now > lastNs) {
+            float dt = (now - lastNs) / 1e9f;
+            derivativeX += DERIVATIVE_SMOOTHING * ((ex - errorX) / dt - derivativeX);
+            derivativeY += DERIVATIVE_SMOOTHING * ((ey - errorY) / dt - derivativeY);
+        }
+        errorX = ex;
+        errorY = ey;
+        lastNs = now;
+
+        // Yaw: clockwise (positive) to bring a target on the right to the center
+        float yawRate = Math.abs(ex) < DEAD_BAND ? 0 : KP_YAW * ex + KD_YAW * derivativeX;
+        int percent = Math.round(100 * yawRate / maxRotationSpeed);
+        yaw = (byte) Math.min(Math.max(percent, -MAX_YAW), MAX_YAW);
+
+        // Tilt: up (positive) to bring a target above the center to the center
+        float rate = Math.abs(ey) < DEAD_BAND ? 0 : -(KP_TILT * ey + KD_TILT * derivativeY);
+        rate = Math.min(Math.max(rate, -MAX_TILT_RATE), MAX_TILT_RATE);
+        tiltRate = Math.round(rate / TILT_QUANTUM) * TILT_QUANTUM;
+    }
+
+    /**
+     * @param maxRotationSpeed (float): max yaw rotation speed setting of the drone [deg/s]
+     */
+    void setMaxRotationSpeed(float maxRotationSpeed) {
+        if (maxRotationSpeed > 0) {
+            this.maxRotationSpeed = maxRotationSpeed;
+        }
+    }
+
+    /**
+     * @return (byte): yaw rotation speed as signed percentage of the max rotation speed
+     */
+    byte yaw() {
+        return yaw;
+    }
+
+    /**
+     * @return (float): camera tilt velocity [deg/s], positive to look up
+     */
+    float tiltRate() {
+        return tiltRate;
+    }
+}
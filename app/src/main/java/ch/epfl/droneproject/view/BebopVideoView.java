@@ -2,7 +2,9 @@ package ch.epfl.droneproject.view;
 
 import android.content.Context;
 import android.graphics.SurfaceTexture;
+import android.media.Image;
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -24,6 +26,17 @@ import java.util.concurrent.locks.ReentrantLock;
  * Bebop streaming view, displaying the live recorded frames. This class is inspired from
  * parrot samples, but has been adapted to extends TextureView which allows extracting Bitmap image
  * (i.e. useful for OpenCv Computation)
+ *
+ * The stream is also decoded a second time into YUV buffers (i.e. without going through the display
+ * surface). Decoded frames are written in a pool of three native frame buffers (triple buffering),
+ * so the computer vision thread can read the latest frame in place without any copy or allocation.
+ * The middle buffer acts as a single slot mailbox: a new frame replaces the previous one if it was
+ * not consumed yet (latest wins) and wakes up the waiting vision thread.
+ * Each frame is stamped when it is received from the drone. The stamp goes through the decoder as
+ * the presentation time of the frame, hence a decoded frame keeps the reception time of its own
+ * encoded frame whatever the latency of the decoder (see DecodedFrame.getReceivedNs).
+ * @see DecodedFrame
+ * @see #awaitLatestFrame(long)
  */
 public class BebopVideoView extends TextureView implements TextureView.SurfaceTextureListener {
 
@@ -42,6 +55,15 @@ public class BebopVideoView extends TextureView implements TextureView.SurfaceTe
     private ByteBuffer mSpsBuffer;
     private ByteBuffer mPpsBuffer;
 
+    // Second decoder output for computer vision
+    private MediaCodec mFrameCodec;
+    private final Object mFrameLock = new Object();
+    private final DecodedFrame[] mFramePool = new DecodedFrame[3];
+    private int mBackFrame = 0, mMiddleFrame = 1, mFrontFrame = 2;
+    private boolean mIsMiddleFresh = false;
+    private long mFrameCount = 0;
+    private final MediaCodec.BufferInfo mFrameInfo = new MediaCodec.BufferInfo();
+
 
     public BebopVideoView(Context context) {
         this(context, null);
@@ -58,6 +80,7 @@ public class BebopVideoView extends TextureView implements TextureView.SurfaceTe
     }
 
     public void displayFrame(ARFrame frame) {
+        long receivedNs = System.nanoTime();
         mReadyLock.lock();
 
         if (mIsSurfaceCreated && mSpsBuffer != null) {
@@ -102,10 +125,99 @@ public class BebopVideoView extends TextureView implements TextureView.SurfaceTe
             } catch (IllegalStateException e) {
                 Log.e(TAG, "Error while dequeue input buffer (outIndex)");
             }
+
+            decodeForVision(frame, receivedNs);
         }
         mReadyLock.unlock();
     }
 
+    /**
+     * Feed the second decoder with the same frame and copy its decoded output images into the
+     * frame pool.
+     * @param frame (ARFrame): the received H264 frame
+     * @param receivedNs (long): System.nanoTime() of the reception of the frame
+     */
+    private void decodeForVision(ARFrame frame, long receivedNs) {
+        if (mFrameCodec == null) {
+            return;
+        }
+
+        try {
+            int index = mFrameCodec.dequeueInputBuffer(VIDEO_DEQUEUE_TIMEOUT);
+            if (index >= 0) {
+                ByteBuffer b = mFrameCodec.getInputBuffer(index);
+                if (b != null) {
+                    b.put(frame.getByteData(), 0, frame.getDataSize());
+                }
+                mFrameCodec.queueInputBuffer(index, 0, frame.getDataSize(), receivedNs / 1000, 0);
+            }
+
+            int outIndex = mFrameCodec.dequeueOutputBuffer(mFrameInfo, 0);
+            while (outIndex >= 0) {
+                Image image = mFrameCodec.getOutputImage(outIndex);
+                if (image != null) {
+                    publishFrame(image, mFrameInfo.presentationTimeUs * 1000);
+                    image.close();
+                }
+                mFrameCodec.releaseOutputBuffer(outIndex, false);
+                outIndex = mFrameCodec.dequeueOutputBuffer(mFrameInfo, 0);
+            }
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Error while decoding frame for vision");
+        }
+    }
+
+    /**
+     * Write the decoded image in the back frame, then swap it with the middle one.
+     * The back frame is only accessed by the decoding thread so the copy is done without lock.
+     * @param image (Image): decoded YUV image
+     * @param receivedNs (long): System.nanoTime() of the reception of the encoded frame
+     */
+    private void publishFrame(Image image, long receivedNs) {
+        DecodedFrame back = mFramePool[mBackFrame];
+        if (back == null || !back.fits(image)) {
+            back = new DecodedFrame(image.getWidth(), image.getHeight());
+            mFramePool[mBackFrame] = back;
+        }
+        back.fill(image, mFrameCount++, receivedNs);
+
+        synchronized (mFrameLock) {
+            int tmp = mMiddleFrame;
+            mMiddleFrame = mBackFrame;
+            mBackFrame = tmp;
+            mIsMiddleFresh = true;
+            mFrameLock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait for a frame decoded since the last call and give it to the caller. The returned frame
+     * belongs to the caller until its next call to this method (i.e. the decoder will never write
+     * in it meanwhile). Frames decoded in between are dropped, only the latest one is returned.
+     * @param timeout (long): maximum time to wait in millisecond
+     * @return (DecodedFrame): the latest decoded frame or null if no new frame came before the timeout
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public DecodedFrame awaitLatestFrame(long timeout) throws InterruptedException {
+        synchronized (mFrameLock) {
+            long deadline = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+            while (!mIsMiddleFresh && remaining > 0) {
+                mFrameLock.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (!mIsMiddleFresh) {
+                return null;
+            }
+
+            int tmp = mFrontFrame;
+            mFrontFrame = mMiddleFrame;
+            mMiddleFrame = tmp;
+            mIsMiddleFresh = false;
+            return mFramePool[mFrontFrame];
+        }
+    }
+
     public void configureDecoder(ARControllerCodec codec) {
         mReadyLock.lock();
         if (codec.getType() == ARCONTROLLER_STREAM_CODEC_TYPE_ENUM.ARCONTROLLER_STREAM_CODEC_TYPE_H264) {
@@ -130,6 +242,8 @@ public class BebopVideoView extends TextureView implements TextureView.SurfaceTe
             mMediaCodec.configure(format, mSurface, null, 0);
             mMediaCodec.start();
 
+            configureFrameCodec();
+
             mIsCodecConfigured = true;
 
         } catch (Exception e) {
@@ -138,6 +252,35 @@ public class BebopVideoView extends TextureView implements TextureView.SurfaceTe
 
     }
 
+    /**
+     * Configure the second decoder, without output surface, which gives the YUV frames to the vision
+     */
+    private void configureFrameCodec() {
+        try {
+            releaseFrameCodec();
+            final MediaFormat format = MediaFormat.createVideoFormat(VIDEO_MIME_TYPE, VIDEO_WIDTH, VIDEO_HEIGHT);
+            format.setByteBuffer("csd-0", mSpsBuffer);
+            format.setByteBuffer("csd-1", mPpsBuffer);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+
+            mFrameCodec = MediaCodec.createDecoderByType(VIDEO_MIME_TYPE);
+            mFrameCodec.configure(format, null, null, 0);
+            mFrameCodec.start();
+
+        } catch (Exception e) {
+            Log.e(TAG, "configureFrameCodec", e);
+            mFrameCodec = null;
+        }
+    }
+
+    private void releaseFrameCodec() {
+        if (mFrameCodec != null) {
+            mFrameCodec.stop();
+            mFrameCodec.release();
+            mFrameCodec = null;
+        }
+    }
+
     @Override
     public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
         this.mSurface = new Surface(surface);
@@ -160,6 +303,9 @@ public class BebopVideoView extends TextureView implements TextureView.SurfaceTe
             mIsCodecConfigured = false;
             mMediaCodec = null;
         }
+        mReadyLock.lock();
+        releaseFrameCodec();
+        mReadyLock.unlock();
 
         if (surface != null) surface.release();
         if (this.mSurface != null) this.mSurface.release();
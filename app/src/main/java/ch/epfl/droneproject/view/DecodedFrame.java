@@ -0,0 +1,137 @@
+package ch.epfl.droneproject.view;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * DecodedFrame.java
+ * @author blchatel
+ *
+ * A decoded frame of the drone stream stored in a direct (i.e. native) buffer in I420 layout:
+ * the full resolution Y plane followed by the quarter resolution U and V planes.
+ * Frames are pooled and reused by the BebopVideoView, hence a consumer must not keep a frame
+ * after it asked for the next one.
+ * @see BebopVideoView#awaitLatestFrame(long)
+ */
+public class DecodedFrame {
+
+    private final int width;
+    private final int height;
+    private final ByteBuffer data;
+    private long sequence;
+    private long receivedNs;
+    // Reused rows of an interleaved chroma plane: as read from the image, and deinterleaved
+    private byte[] stridedRow;
+    private final byte[] chromaRow;
+
+    /**
+     * Allocate a frame buffer for the given resolution
+     * @param width (int): frame width in pixel
+     * @param height (int): frame height in pixel
+     */
+    DecodedFrame(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.data = ByteBuffer.allocateDirect(width * height * 3 / 2);
+        this.stridedRow = new byte[0];
+        this.chromaRow = new byte[width / 2];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return (ByteBuffer): the direct buffer containing the Y, U and V planes
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    /**
+     * @return (long): the number of the frame in the decoded stream
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return (long): System.nanoTime() when the encoded frame was received from the drone
+     */
+    public long getReceivedNs() {
+        return receivedNs;
+    }
+
+    /**
+     * Check if an image can be copied in this frame
+     * @param image (Image): decoder output image
+     * @return (boolean): true if the image has the same resolution as the frame
+     */
+    boolean fits(Image image) {
+        return image.getWidth() == width && image.getHeight() == height;
+    }
+
+    /**
+     * Copy the planes of a YUV_420_888 decoder output image into this frame buffer.
+     * The decoder is free to use planar or semi-planar layouts, strides are hence taken into account
+     * @param image (Image): decoder output image of the same resolution
+     * @param sequence (long): number of the frame in the decoded stream
+     * @param receivedNs (long): System.nanoTime() when the encoded frame was received
+     */
+    void fill(Image image, long sequence, long receivedNs) {
+        Image.Plane[] planes = image.getPlanes();
+        int lumaSize = width * height;
+        copyPlane(planes[0], width, height, 0);
+        copyPlane(planes[1], width / 2, height / 2, lumaSize);
+        copyPlane(planes[2], width / 2, height / 2, lumaSize + lumaSize / 4);
+        this.sequence = sequence;
+        this.receivedNs = receivedNs;
+    }
+
+    /**
+     * Copy a single plane row by row. The rows of an interleaved plane (e.g. the chroma of NV12) are
+     * bulk read in a reused array and deinterleaved from it
+     * @param plane (Image.Plane): plane to copy
+     * @param w (int): plane width
+     * @param h (int): plane height
+     * @param offset (int): where to start writing in the frame buffer
+     */
+    private void copyPlane(Image.Plane plane, int w, int h, int offset) {
+        ByteBuffer src = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+
+        if (pixelStride == 1) {
+            for (int row = 0; row < h; row++) {
+                int start = row * rowStride;
+                src.limit(start + w);
+                src.position(start);
+                data.position(offset + row * w);
+                data.put(src);
+            }
+        } else {
+            // The last row of the plane may stop right after its last pixel
+            int length = (w - 1) * pixelStride + 1;
+            if (stridedRow.length < length) {
+                stridedRow = new byte[length];
+            }
+            src.clear();
+            data.position(offset);
+            for (int row = 0; row < h; row++) {
+                src.position(row * rowStride);
+                src.get(stridedRow, 0, length);
+                for (int col = 0; col < w; col++) {
+                    chromaRow[col] = stridedRow[col * pixelStride];
+                }
+                data.put(chromaRow, 0, w);
+            }
+        }
+        data.clear();
+    }
+}
@@ -15,7 +15,7 @@ import android.view.View;
  * This class is a simple drawn layer with the OpenCv computed information
  * @see ch.epfl.droneproject.module.AutoPilotModule
  * In other words, this class draws rectangle of specific color in overlay to the drone streaming
- * images
+ * images. The rectangles of the other tracked targets are drawn with their id (see setOtherRect)
  *
  * This class provide private class
  * @see MyCvRect
@@ -24,9 +24,17 @@ public class OpenCVView extends View {
 
     public final static int FACE_RECT_COLOR = Color.DKGRAY;
     public final static int BLOB_RECT_COLOR = Color.LTGRAY;
+    public final static int OTHER_RECT_COLOR = Color.GRAY;
+    public final static int MAX_OTHER_RECTS = 8;
     private Paint paint;
+    private Paint otherPaint;
     private MyCvRect rect;
     private String text;
+    // Other targets: id, label and rectangle (the labels are only created when the id changes)
+    private final int[] otherIds;
+    private final String[] otherTexts;
+    private final MyCvRect[] otherRects;
+    private int otherCount;
 
     public OpenCVView(Context context) {
         this(context, null);
@@ -46,8 +54,21 @@ public class OpenCVView extends View {
         paint.setStrokeWidth(4f);
         paint.setTextSize(40);
 
+        otherPaint = new Paint(paint);
+        otherPaint.setColor(OTHER_RECT_COLOR);
+        otherPaint.setStrokeWidth(2f);
+
         rect = new MyCvRect();
         text = "";
+
+        otherIds = new int[MAX_OTHER_RECTS];
+        otherTexts = new String[MAX_OTHER_RECTS];
+        otherRects = new MyCvRect[MAX_OTHER_RECTS];
+        for (int i = 0; i < MAX_OTHER_RECTS; i++) {
+            otherIds[i] = -1;
+            otherRects[i] = new MyCvRect();
+        }
+        otherCount = 0;
     }
 
     public void setRect(int x1, int y1, int x2, int y2){
@@ -60,6 +81,22 @@ public class OpenCVView extends View {
         this.text = text;
     }
 
+    /**
+     * Set the rectangle of another tracked target
+     * @param i (int): index of the rectangle, lower than MAX_OTHER_RECTS
+     * @param id (int): id of the target, drawn above its rectangle
+     */
+    public void setOtherRect(int i, int id, int x1, int y1, int x2, int y2){
+        if(otherIds[i] != id){
+            otherIds[i] = id;
+            otherTexts[i] = "#" + id;
+        }
+        otherRects[i].setRect(x1, y1, x2, y2);
+    }
+    public void setOtherRectCount(int count){
+        this.otherCount = Math.min(count, MAX_OTHER_RECTS);
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
         if(text != null) {
@@ -67,6 +104,11 @@ public class OpenCVView extends View {
         }
         canvas.drawRect(rect.x1, rect.y1, rect.x2, rect.y2, paint);
         canvas.drawCircle(rect.xc, rect.yc, 11, paint);
+        for (int i = 0; i < otherCount; i++) {
+            MyCvRect other = otherRects[i];
+            canvas.drawText(otherTexts[i], other.x1, other.y1 - 10, otherPaint);
+            canvas.drawRect(other.x1, other.y1, other.x2, other.y2, otherPaint);
+        }
         super.onDraw(canvas);
     }
 
@@ -0,0 +1,183 @@
+package ch.epfl.droneproject.module;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PilotingLoopTest.java
+ * @author blchatel
+ *
+ * Unit tests of the piloting loop, on a module recording the PCMD instead of sending them: the
+ * suppression of the unchanged commands, the merge and the expiry of the servo yaw, and the hover
+ * sent on stop. The loop runs on its own thread at PilotingLoop.RATE_HZ, hence the tests wait for
+ * the commands with a timeout.
+ * @see PilotingLoop
+ */
+public class PilotingLoopTest {
+
+    private static final long TIMEOUT_MS = 1000;
+    // Ticks of the loop a test waits to be sure no other command is sent
+    private static final long QUIET_MS = 6 * 1000 / PilotingLoop.RATE_HZ;
+    // Time after which the servo yaw expires, see PilotingLoop
+    private static final long SETPOINT_TIMEOUT_MS = 500;
+
+    private RecordingModule module;
+    private PilotingLoop loop;
+
+    /**
+     * Module recording the axes (flag, roll, pitch, yaw, gaz) of each PCMD
+     */
+    private static class RecordingModule extends SkyControllerExtensionModule {
+
+        private final List<byte[]> commands = new ArrayList<>();
+
+        RecordingModule() {
+            super(null, null);
+        }
+
+        @Override
+        public void setPCDM(byte flag, byte roll, byte pitch, byte yaw, byte gaz, int timestampAndSeqNum) {
+            synchronized (commands) {
+                commands.add(new byte[]{flag, roll, pitch, yaw, gaz});
+                commands.notifyAll();
+            }
+        }
+
+        int count() {
+            synchronized (commands) {
+                return commands.size();
+            }
+        }
+
+        byte[] last() {
+            synchronized (commands) {
+                return commands.isEmpty() ? null : commands.get(commands.size() - 1);
+            }
+        }
+
+        /**
+         * Wait until the last command is the expected one
+         * @return (boolean): false on timeout
+         */
+        boolean await(byte[] expected) throws InterruptedException {
+            long end = System.currentTimeMillis() + TIMEOUT_MS;
+            synchronized (commands) {
+                while (commands.isEmpty() || !Arrays.equals(commands.get(commands.size() - 1), expected)) {
+                    long wait = end - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        return false;
+                    }
+                    commands.wait(wait);
+                }
+                return true;
+            }
+        }
+    }
+
+    private static byte[] axes(int flag, int roll, int pitch, int yaw, int gaz) {
+        return new byte[]{(byte) flag, (byte) roll, (byte) pitch, (byte) yaw, (byte) gaz};
+    }
+
+    @Before
+    public void setUp() {
+        module = new RecordingModule();
+        loop = new PilotingLoop(module);
+    }
+
+    @After
+    public void tearDown() {
+        loop.stop();
+    }
+
+    @Test
+    public void unchangedCommandIsSentOnce() throws InterruptedException {
+        loop.setFlag((byte) 1);
+        loop.setPitch((byte) 20);
+        loop.setYaw((byte) 10);
+        loop.start();
+
+        assertTrue(module.await(axes(1, 0, 20, 10, 0)));
+        Thread.sleep(QUIET_MS);
+        assertEquals(1, module.count());
+
+        // Same value again: nothing sent, the update is counted as suppressed
+        loop.setYaw((byte) 10);
+        Thread.sleep(QUIET_MS);
+        assertEquals(1, module.count());
+        assertTrue(loop.counters().contains("suppressed 1"));
+
+        // A changed axis is sent, the other axes are kept
+        loop.setGaz((byte) -30);
+        assertTrue(module.await(axes(1, 0, 20, 10, -30)));
+        assertEquals(2, module.count());
+    }
+
+    @Test
+    public void repeatedServoYawIsSuppressed() throws InterruptedException {
+        loop.start();
+        loop.setServoYaw((byte) 30);
+        assertTrue(module.await(axes(0, 0, 0, 30, 0)));
+
+        int count = module.count();
+        loop.setServoYaw((byte) 30);
+        loop.setServoYaw((byte) 30);
+        Thread.sleep(QUIET_MS);
+        assertEquals(count, module.count());
+        assertTrue(loop.counters().contains("suppressed 2"));
+    }
+
+    @Test
+    public void servoYawReplacesTheProcedureYawUntilItExpires() throws InterruptedException {
+        loop.setYaw((byte) 5);
+        loop.setPitch((byte) 20);
+        loop.start();
+        assertTrue(module.await(axes(0, 0, 20, 5, 0)));
+
+        long published = System.currentTimeMillis();
+        loop.setServoYaw((byte) 50);
+        assertTrue(module.await(axes(0, 0, 20, 50, 0)));
+
+        // No new servo yaw: the procedure yaw comes back once the servo yaw expired
+        assertTrue(module.await(axes(0, 0, 20, 5, 0)));
+        // (less a tick of clock granularity)
+        assertTrue(System.currentTimeMillis() - published >= SETPOINT_TIMEOUT_MS - 10);
+    }
+
+    @Test
+    public void releaseServoKeepsTheProcedureAxes() throws InterruptedException {
+        loop.setFlag((byte) 1);
+        loop.setRoll((byte) -10);
+        loop.start();
+        loop.setServoYaw((byte) -40);
+        assertTrue(module.await(axes(1, -10, 0, -40, 0)));
+
+        loop.releaseServo();
+        assertTrue(module.await(axes(1, -10, 0, 0, 0)));
+    }
+
+    @Test
+    public void stopSendsAHover() throws InterruptedException {
+        loop.setPitch((byte) 20);
+        loop.start();
+        loop.setServoYaw((byte) 50);
+        assertTrue(module.await(axes(0, 0, 20, 50, 0)));
+
+        loop.stop();
+        assertArrayEquals(axes(0, 0, 0, 0, 0), module.last());
+
+        // Stopped: the axes are updated but not sent
+        int count = module.count();
+        loop.setPitch((byte) 10);
+        Thread.sleep(QUIET_MS);
+        assertEquals(count, module.count());
+    }
+}
@@ -0,0 +1,99 @@
+package ch.epfl.droneproject.module;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * TargetTrackerTest.java
+ * @author blchatel
+ *
+ * Unit tests of the target tracker: the first detection, the coasting with the last velocity
+ * between detections, the end of the track after maxCoast frames and the steady state.
+ * @see TargetTracker
+ */
+public class TargetTrackerTest {
+
+    private static final int MAX_COAST = 5;
+    private static final int DETECTION_PERIOD = 2;
+
+    private TargetTracker tracker;
+
+    @Before
+    public void setUp() {
+        tracker = new TargetTracker(MAX_COAST, DETECTION_PERIOD);
+    }
+
+    @Test
+    public void firstDetectionSetsTheEstimate() {
+        tracker.reset(10, 10);
+        tracker.predict(0);
+        tracker.correct(100, 50, 20, 30);
+
+        assertEquals(100, tracker.x());
+        assertEquals(50, tracker.y());
+        assertEquals(20, tracker.width());
+        assertEquals(30, tracker.height());
+        assertTrue(tracker.isTracking());
+        assertFalse(tracker.isSteady());
+    }
+
+    @Test
+    public void coastsWithTheLastVelocity() {
+        // Target moving 4 pixels per frame to the right
+        tracker.predict(0);
+        tracker.correct(100, 50, 20, 20);
+        for (long s = 1; s <= 60; s++) {
+            tracker.predict(s);
+            tracker.correct(100 + 4 * s, 50, 20, 20);
+        }
+        int x = tracker.x();
+        assertEquals(340, x, 1);
+        assertEquals(x + 4, tracker.nextX(), 1);
+
+        // No detection: the estimate keeps moving
+        tracker.predict(63);
+        assertEquals(x + 12, tracker.x(), 1);
+        assertEquals(50, tracker.y());
+        assertTrue(tracker.isTracking());
+    }
+
+    @Test
+    public void trackEndsAfterMaxCoastFrames() {
+        tracker.predict(0);
+        tracker.correct(100, 50, 20, 20);
+
+        tracker.predict(MAX_COAST);
+        assertTrue(tracker.isTracking());
+        tracker.predict(MAX_COAST + 1);
+        assertFalse(tracker.isTracking());
+
+        // A new detection continues the track
+        tracker.correct(100, 50, 20, 20);
+        assertTrue(tracker.isTracking());
+    }
+
+    @Test
+    public void steadyAfterConsecutiveDetections() {
+        for (long s = 0; s < 3; s++) {
+            assertFalse(tracker.isSteady());
+            tracker.predict(s * DETECTION_PERIOD);
+            tracker.correct(100, 50, 20, 20);
+        }
+        assertTrue(tracker.isSteady());
+
+        // Detections can be skipped until detectionPeriod frames after the last one
+        tracker.predict(2 * DETECTION_PERIOD + 1);
+        assertTrue(tracker.isSteady());
+        tracker.predict(3 * DETECTION_PERIOD);
+        assertFalse(tracker.isSteady());
+
+        // A detection after a gap starts counting again
+        tracker.predict(6 * DETECTION_PERIOD);
+        tracker.correct(100, 50, 20, 20);
+        assertFalse(tracker.isSteady());
+    }
+}
@@ -0,0 +1,152 @@
+package ch.epfl.droneproject.module;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * TelemetryRingTest.java
+ * @author blchatel
+ *
+ * Unit tests of the telemetry history: the queries on an empty ring, the wraparound of the rows,
+ * the bounds of at() and the interpolation of the yaw across -pi/pi.
+ * @see TelemetryRing
+ */
+public class TelemetryRingTest {
+
+    private static final float EPSILON = 1e-4f;
+    // Rows of the ring, see TelemetryRing
+    private static final int CAPACITY = 256;
+
+    private TelemetryRing ring;
+    private TelemetryRing.Sample sample;
+
+    @Before
+    public void setUp() {
+        ring = new TelemetryRing();
+        sample = new TelemetryRing.Sample();
+    }
+
+    @Test
+    public void emptyRingHasNoSample() {
+        assertFalse(ring.latest(sample));
+        assertFalse(ring.at(1000, sample));
+        assertEquals(0, ring.count());
+    }
+
+    @Test
+    public void latestIsTheLastRecordedRow() {
+        ring.recordAttitude(100, 0.1f, 0.2f, 0.3f);
+        ring.recordAttitude(200, 0.4f, 0.5f, 0.6f);
+
+        assertTrue(ring.latest(sample));
+        assertEquals(200, sample.ns);
+        assertEquals(0.4f, sample.roll, EPSILON);
+        assertEquals(0.5f, sample.pitch, EPSILON);
+        assertEquals(0.6f, sample.yaw, EPSILON);
+    }
+
+    @Test
+    public void eventsCarryTheColumnsOfTheOtherEvent() {
+        ring.recordAttitude(100, 0.1f, 0.2f, 0.3f);
+        assertTrue(ring.latest(sample));
+        assertEquals(TelemetryRing.UNKNOWN_POSITION, sample.lat, 0);
+
+        ring.recordPosition(200, 46.5, 6.5, 10);
+        assertTrue(ring.latest(sample));
+        assertEquals(0.3f, sample.yaw, EPSILON);
+        assertEquals(46.5, sample.lat, 0);
+        assertEquals(10, sample.alt, 0);
+
+        ring.recordAttitude(300, 0, 0, -0.3f);
+        assertTrue(ring.latest(sample));
+        assertEquals(-0.3f, sample.yaw, EPSILON);
+        assertEquals(6.5, sample.lon, 0);
+    }
+
+    @Test
+    public void wraparoundKeepsTheLastCapacityRows() {
+        int rows = CAPACITY + 44;
+        for (int i = 0; i < rows; i++) {
+            ring.recordAttitude(i * 10L, i, 0, 0);
+        }
+        assertEquals(rows, ring.count());
+
+        assertTrue(ring.latest(sample));
+        assertEquals((rows - 1) * 10L, sample.ns);
+        assertEquals(rows - 1, sample.roll, EPSILON);
+
+        // Older than the history: the oldest row kept, i.e. the row 44
+        assertTrue(ring.at(0, sample));
+        assertEquals(44, sample.roll, EPSILON);
+
+        // Inside the history, across the physical end of the arrays
+        assertTrue(ring.at(2555, sample));
+        assertEquals(255.5f, sample.roll, EPSILON);
+    }
+
+    @Test
+    public void atBounds() {
+        ring.recordAttitude(100, 1, 0, 0);
+        ring.recordAttitude(200, 2, 0, 0);
+        ring.recordAttitude(300, 3, 0, 0);
+
+        // Before the first row: the first row, at the asked time
+        assertTrue(ring.at(50, sample));
+        assertEquals(50, sample.ns);
+        assertEquals(1, sample.roll, EPSILON);
+
+        // On a row
+        assertTrue(ring.at(200, sample));
+        assertEquals(2, sample.roll, EPSILON);
+
+        // Between two rows
+        assertTrue(ring.at(225, sample));
+        assertEquals(225, sample.ns);
+        assertEquals(2.25f, sample.roll, EPSILON);
+
+        // On and after the last row: the last row
+        assertTrue(ring.at(300, sample));
+        assertEquals(3, sample.roll, EPSILON);
+        assertTrue(ring.at(1000, sample));
+        assertEquals(1000, sample.ns);
+        assertEquals(3, sample.roll, EPSILON);
+    }
+
+    @Test
+    public void yawTurnsTheShortestWayAcrossPi() {
+        ring.recordAttitude(0, 0, 0, 3.1f);
+        ring.recordAttitude(100, 0, 0, -3.1f);
+        double turn = 2 * Math.PI - 6.2;
+
+        assertTrue(ring.at(25, sample));
+        assertEquals(3.1 + 0.25 * turn, sample.yaw, EPSILON);
+
+        // Past pi, the yaw is wrapped in [-pi, pi]
+        assertTrue(ring.at(75, sample));
+        assertEquals(3.1 + 0.75 * turn - 2 * Math.PI, sample.yaw, EPSILON);
+
+        // And back the other way
+        ring.recordAttitude(200, 0, 0, 3.1f);
+        assertTrue(ring.at(125, sample));
+        assertEquals(-3.1 - 0.25 * turn, sample.yaw, EPSILON);
+    }
+
+    @Test
+    public void unknownPositionIsNotInterpolated() {
+        ring.recordAttitude(0, 0, 0, 0);
+        ring.recordPosition(100, 46.5, 6.5, 10);
+
+        // Nearest row when one of the rows has no position
+        assertTrue(ring.at(40, sample));
+        assertEquals(TelemetryRing.UNKNOWN_POSITION, sample.lat, 0);
+        assertTrue(ring.at(60, sample));
+        assertEquals(46.5, sample.lat, 0);
+        assertEquals(6.5, sample.lon, 0);
+        // The altitude is always interpolated
+        assertEquals(6, sample.alt, 1e-6);
+    }
+}
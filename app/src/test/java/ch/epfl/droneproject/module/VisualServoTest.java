@@ -0,0 +1,111 @@
+package ch.epfl.droneproject.module;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * VisualServoTest.java
+ * @author blchatel
+ *
+ * Unit tests of the visual servo: the sign of the yaw and tilt outputs, the dead band, the bounds,
+ * the quantization of the tilt and the compensation of the turn since the frame.
+ * @see VisualServo
+ */
+public class VisualServoTest {
+
+    private static final int WIDTH = 640;
+    private static final long FRAME_NS = 33000000L;
+    // Bounds of the outputs, see VisualServo
+    private static final int MAX_YAW = 50;
+    private static final float MAX_TILT_RATE = 20;
+
+    private VisualServo servo;
+
+    @Before
+    public void setUp() {
+        servo = new VisualServo();
+        servo.setFov(80);
+        servo.setMaxRotationSpeed(100);
+    }
+
+    @Test
+    public void targetOnTheRightTurnsClockwise() {
+        servo.update(FRAME_NS, 100, 0, WIDTH, 0, 0);
+        assertTrue(servo.yaw() > 0);
+        assertEquals(0, servo.tiltRate(), 0);
+
+        servo.reset();
+        servo.update(FRAME_NS, -100, 0, WIDTH, 0, 0);
+        assertTrue(servo.yaw() < 0);
+    }
+
+    @Test
+    public void targetBelowTiltsDown() {
+        servo.update(FRAME_NS, 0, 100, WIDTH, 0, 0);
+        assertTrue(servo.tiltRate() < 0);
+        assertEquals(0, servo.yaw());
+
+        servo.reset();
+        servo.update(FRAME_NS, 0, -100, WIDTH, 0, 0);
+        assertTrue(servo.tiltRate() > 0);
+    }
+
+    @Test
+    public void centeredTargetGivesNoRate() {
+        // About 0.5 degree, within the dead band
+        servo.update(FRAME_NS, 4, -4, WIDTH, 0, 0);
+        assertEquals(0, servo.yaw());
+        assertEquals(0, servo.tiltRate(), 0);
+    }
+
+    @Test
+    public void outputsAreBounded() {
+        // A slow drone: the yaw percentage of a large error is over the bound
+        servo.setMaxRotationSpeed(20);
+        servo.update(FRAME_NS, WIDTH / 2, WIDTH / 2, WIDTH, 0, 0);
+        assertEquals(MAX_YAW, servo.yaw());
+        assertEquals(-MAX_TILT_RATE, servo.tiltRate(), 0);
+
+        servo.reset();
+        servo.update(FRAME_NS, -WIDTH / 2, -WIDTH / 2, WIDTH, 0, 0);
+        assertEquals(-MAX_YAW, servo.yaw());
+        assertEquals(MAX_TILT_RATE, servo.tiltRate(), 0);
+    }
+
+    @Test
+    public void tiltRateIsQuantized() {
+        for (int dy = -200; dy <= 200; dy += 7) {
+            servo.reset();
+            servo.update(FRAME_NS, 0, dy, WIDTH, 0, 0);
+            float steps = servo.tiltRate() / 0.5f;
+            assertEquals(Math.round(steps), steps, 1e-6f);
+        }
+    }
+
+    @Test
+    public void turnSinceTheFrameIsCompensated() {
+        // Angle of the target on the frame
+        double focal = WIDTH / 2.0 / Math.tan(Math.toRadians(40));
+        float angle = (float) Math.toDegrees(Math.atan(100 / focal));
+
+        // The drone already turned toward the target since the frame: nothing left to correct
+        servo.update(FRAME_NS, 100, 0, WIDTH, angle, 0);
+        assertEquals(0, servo.yaw());
+
+        // The camera already tilted down toward the target (negative tilt up)
+        servo.reset();
+        servo.update(FRAME_NS, 0, 100, WIDTH, 0, -angle);
+        assertEquals(0, servo.tiltRate(), 0);
+    }
+
+    @Test
+    public void resetStopsTheOutputs() {
+        servo.update(FRAME_NS, 100, 100, WIDTH, 0, 0);
+        servo.reset();
+        assertEquals(0, servo.yaw());
+        assertEquals(0, servo.tiltRate(), 0);
+    }
+}